@@ -0,0 +1,230 @@
+package fjwright.runreduce;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class provides a stand-in for a REDUCE executable that speaks enough of the REDUCE prompt protocol
+ * for Run-REDUCE, so that throughput, latency and multi-tab tests can run repeatably without REDUCE installed.
+ * Configure it as a REDUCE version whose command is the bench/fake-reduce script followed by any options:
+ * <pre>
+ * -rate BYTES_PER_SECOND  limit the output rate (default 0, unlimited)
+ * -chunk BYTES            write and flush output in chunks of this size (default 8192)
+ * -delay MILLIS           wait this long before responding to each statement (default 0)
+ * -output BYTES           approximate length of the response to each statement (default 0, echo)
+ * -redfront               output redfront markup
+ * -question N             ask a ? question before responding to every Nth statement (default 0, never)
+ * -encoding NAME          encoding of input and output (default UTF-8)
+ * </pre>
+ * Each statement is terminated by ; or $ (which suppresses its output).
+ * The statements bye and quit end the process, symbolic (or lisp) and algebraic switch the prompt mode,
+ * output N responds with about N bytes, yesp asks a question,
+ * and spin uses CPU time until more input is available, e.g. a blank line, when it outputs "+++ Interrupted"
+ * and a new prompt. (SIGINT, as sent by Break, ends FakeREDUCE, because handling it needs a proprietary API.)
+ * Any other statement gets the default response.
+ */
+public class FakeREDUCE {
+    private static final int LINE_LENGTH = 72;
+
+    private long rate;
+    private int chunkLength = 8192;
+    private long delayMillis;
+    private long outputLength;
+    private boolean redfront;
+    private int questionInterval;
+    private Charset charset = StandardCharsets.UTF_8;
+
+    private Reader in;
+    private OutputStream out;
+    private byte[] chunk;   // output not yet written
+    private int chunkFill;
+    private long responseStartNanos, responseBytes; // of the output written since the last prompt was sent
+    private int promptNumber = 1;
+    private boolean symbolic;
+
+    public static void main(String... args) throws IOException, InterruptedException {
+        FakeREDUCE fakeREDUCE = new FakeREDUCE();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-redfront")) {
+                fakeREDUCE.redfront = true;
+                continue;
+            }
+            if (i + 1 == args.length) usage("Missing value for argument: " + arg);
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "-rate":
+                        fakeREDUCE.rate = Long.parseLong(value);
+                        break;
+                    case "-chunk":
+                        fakeREDUCE.chunkLength = Math.max(Integer.parseInt(value), 1);
+                        break;
+                    case "-delay":
+                        fakeREDUCE.delayMillis = Long.parseLong(value);
+                        break;
+                    case "-output":
+                        fakeREDUCE.outputLength = Long.parseLong(value);
+                        break;
+                    case "-question":
+                        fakeREDUCE.questionInterval = Integer.parseInt(value);
+                        break;
+                    case "-encoding":
+                        fakeREDUCE.charset = Charset.forName(value);
+                        break;
+                    default:
+                        usage("Unrecognised argument: " + arg);
+                }
+            } catch (IllegalArgumentException exc) {
+                usage("Invalid value for argument " + arg + ": " + value);
+            }
+        }
+        fakeREDUCE.run();
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Allowed arguments are: -rate BYTES_PER_SECOND, -chunk BYTES, -delay MILLIS, "
+                + "-output BYTES, -redfront, -question N and -encoding NAME.");
+        System.exit(1);
+    }
+
+    private void run() throws IOException, InterruptedException {
+        in = new BufferedReader(new InputStreamReader(System.in, charset));
+        out = new FileOutputStream(FileDescriptor.out);
+        chunk = new byte[chunkLength];
+        print("Fake REDUCE (Run-REDUCE stand-in) ...\n\n");
+        prompt();
+        send();
+        StringBuilder statement = new StringBuilder();
+        for (int statementCount = 1, c; (c = in.read()) != -1; ) {
+            if (c != ';' && c != '$') {
+                if (statement.length() > 0 || !Character.isWhitespace(c)) statement.append((char) c);
+                continue;
+            }
+            String text = statement.toString().trim();
+            statement.setLength(0);
+            if (delayMillis > 0) Thread.sleep(delayMillis);
+            if (text.equals("bye") || text.equals("quit")) {
+                print("\nQuitting\n");
+                send();
+                return;
+            }
+            if (text.equals("yesp") || (questionInterval > 0 && statementCount % questionInterval == 0)) {
+                if (!ask()) return;
+            }
+            statementCount++;
+            if (text.equals("symbolic") || text.equals("lisp")) symbolic = true;
+            else if (text.equals("algebraic")) symbolic = false;
+            if (text.equals("spin")) spin();
+            else if (c == ';') respond(text);
+            promptNumber++;
+            prompt();
+            send();
+        }
+    }
+
+    /**
+     * Output a question prompt and read a non-blank line as the answer.
+     * Return false if the input ends instead.
+     */
+    private boolean ask() throws IOException, InterruptedException {
+        print("\nContinue? (Y or N) ");
+        send();
+        boolean blank = true;
+        for (int c; (c = in.read()) != '\n' || blank; ) {
+            if (c == -1) return false;
+            if (!Character.isWhitespace(c)) blank = false;
+        }
+        return true;
+    }
+
+    /**
+     * Use CPU time until more input is available, checking about every millisecond,
+     * ignoring the rest of the line that ended the statement.
+     */
+    private void spin() throws IOException, InterruptedException {
+        while (in.ready()) {
+            in.mark(1);
+            int c = in.read();
+            if (c == '\n') break;
+            if (!Character.isWhitespace(c)) {
+                in.reset();
+                break;
+            }
+        }
+        for (long i = 1; (i & 0xFFFFF) != 0 || !in.ready(); i++) ;
+        print("\n+++ Interrupted\n\n");
+    }
+
+    /**
+     * Output the response to the specified statement.
+     */
+    private void respond(String text) throws IOException, InterruptedException {
+        long length = outputLength;
+        if (text.startsWith("output ")) {
+            try {
+                length = Long.parseLong(text.substring(7).trim());
+            } catch (NumberFormatException exc) {
+                length = 0;
+            }
+        }
+        print("\n");
+        if (!symbolic && redfront) print("\u0003");
+        if (length <= 0) print(text.isEmpty() ? "0" : text);
+        else
+            for (long written = 0, line = 1; written < length; line++) {
+                StringBuilder sb = new StringBuilder("x").append(line).append(" := ");
+                while (sb.length() < LINE_LENGTH) sb.append(line % 10);
+                sb.append('\n');
+                print(sb);
+                written += sb.length();
+            }
+        if (!symbolic && redfront) print("\u0004");
+        print("\n\n");
+    }
+
+    private void prompt() throws IOException, InterruptedException {
+        String prompt = promptNumber + (symbolic ? "* " : ": ");
+        print(redfront ? "\u0001" + prompt + "\u0002" : prompt);
+    }
+
+    /**
+     * Output the specified text, writing each chunk as soon as it is full,
+     * so that memory use does not grow with the length of a response.
+     */
+    private void print(CharSequence text) throws IOException, InterruptedException {
+        byte[] bytes = text.toString().getBytes(charset);
+        for (int start = 0; start < bytes.length; ) {
+            int length = Math.min(chunk.length - chunkFill, bytes.length - start);
+            System.arraycopy(bytes, start, chunk, chunkFill, length);
+            chunkFill += length;
+            start += length;
+            if (chunkFill == chunk.length) writeChunk();
+        }
+    }
+
+    /**
+     * Write any partial chunk, which ends the current response.
+     */
+    private void send() throws IOException, InterruptedException {
+        if (chunkFill > 0) writeChunk();
+        responseBytes = 0;
+    }
+
+    /**
+     * Write and flush the chunk, limiting the output rate of the current response.
+     */
+    private void writeChunk() throws IOException, InterruptedException {
+        if (responseBytes == 0) responseStartNanos = System.nanoTime();
+        else if (rate > 0) {
+            long sleepNanos = responseStartNanos + responseBytes * 1_000_000_000L / rate - System.nanoTime();
+            if (sleepNanos > 0) Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+        }
+        out.write(chunk, 0, chunkFill);
+        out.flush();
+        responseBytes += chunkFill;
+        chunkFill = 0;
+    }
+}
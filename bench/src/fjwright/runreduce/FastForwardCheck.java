@@ -0,0 +1,107 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * This class checks that fast-forward mode in the standard styled I/O display keeps the text displayed
+ * before a flood of output, shows the skipped text as a gap marker, and keeps the whole session log in order,
+ * with the scrollback limit unlimited, trimming only pre-flood lines, and trimming the gap marker too.
+ * It runs headless and exits with status 1 if a check fails:
+ * <pre>
+ * java -Djava.awt.headless=true -cp CLASSPATH fjwright.runreduce.FastForwardCheck
+ * </pre>
+ */
+public class FastForwardCheck {
+    private static final int BEFORE_LINES = 50;
+    private static final int FLOOD_LINES = 5000;
+    private static final int FLOODS = 3;
+    private static final long LAG_MILLIS = 700; // more than REDUCEOutputQueue.FAST_FORWARD_LAG_MILLIS
+    private static final int MARKER_TRIM_LIMIT = 60; // lines, which trims the gap marker at the end
+
+    private static boolean failed;
+
+    public static void main(String... args) throws Exception {
+        RRPreferences.scrollbackUnit = RRPreferences.ScrollbackUnit.LINES;
+        for (int limit : new int[]{0, 120, MARKER_TRIM_LIMIT}) {
+            RRPreferences.scrollbackLimit = limit;
+            check(limit);
+        }
+        System.out.println(failed ? "FAILED" : "All checks passed.");
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static void check(int limit) throws Exception {
+        System.out.println("Scrollback limit " + (limit == 0 ? "unlimited" : limit + " lines") + ":");
+        StyledIODisplay[] display = new StyledIODisplay[1];
+        REDUCEOutputQueue[] queue = new REDUCEOutputQueue[1];
+        boolean[] fastForward = new boolean[1];
+        SwingUtilities.invokeAndWait(() -> {
+            display[0] = new StyledIODisplay();
+            queue[0] = new REDUCEOutputQueue(display[0], ff -> fastForward[0] |= ff);
+        });
+        StringBuilder expected = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= BEFORE_LINES; i++) text.append("before ").append(i).append('\n');
+        send(queue[0], text, expected, 0);
+        for (int flood = 1; flood <= FLOODS; flood++) {
+            for (int i = 1; i <= FLOOD_LINES; i++)
+                text.append("flood ").append(flood).append(' ').append(i).append('\n');
+            send(queue[0], text, expected, LAG_MILLIS);
+        }
+        Thread.sleep(500); // let fast-forward mode end
+        text.append("after\n");
+        send(queue[0], text, expected, 0);
+
+        String[] displayed = new String[1];
+        StringWriter log = new StringWriter();
+        SwingUtilities.invokeAndWait(() -> {
+            Document doc = ((JTextPane) ((JScrollPane) display[0].getComponent()).getViewport().getView())
+                    .getDocument();
+            try {
+                displayed[0] = doc.getText(0, doc.getLength());
+                display[0].write(log);
+            } catch (BadLocationException | IOException exc) {
+                throw new RuntimeException(exc);
+            }
+        });
+        report("fast-forward mode was entered", fastForward[0]);
+        if (limit == 0) {
+            boolean before = true;
+            for (int i = 1; i <= BEFORE_LINES; i++) before &= displayed[0].contains("before " + i + "\n");
+            report("pre-flood lines are still displayed", before);
+        }
+        if (limit != MARKER_TRIM_LIMIT)
+            report("the skipped text is shown as a gap marker", displayed[0].contains(" lines of output skipped "));
+        report("the display is much shorter than the log", displayed[0].length() < expected.length() / 4);
+        report("the display ends with the post-flood output", displayed[0].endsWith("after\n"));
+        report("the session log is complete and in order", log.toString().equals(expected.toString()));
+        SwingUtilities.invokeAndWait(display[0]::dispose);
+    }
+
+    /**
+     * Queue the specified text while the event-dispatching thread is blocked for the specified time,
+     * so that it is drained with that lag, and wait for it to be drained.
+     */
+    private static void send(REDUCEOutputQueue queue, StringBuilder text, StringBuilder expected, long lagMillis)
+            throws Exception {
+        SwingUtilities.invokeLater(() -> {
+            try {
+                Thread.sleep(lagMillis);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        queue.append(text, null);
+        expected.append(text);
+        text.setLength(0);
+        SwingUtilities.invokeAndWait(queue::drain);
+    }
+
+    private static void report(String check, boolean passed) {
+        System.out.println((passed ? "  OK   " : "  FAIL ") + check);
+        failed |= !passed;
+    }
+}
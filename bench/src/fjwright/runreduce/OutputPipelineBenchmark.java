@@ -0,0 +1,123 @@
+package fjwright.runreduce;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks the whole REDUCE output pipeline, from reading the REDUCE output pipe,
+ * through decoding, prompt detection and styling in REDUCEOutputReader,
+ * to the event-dispatching thread draining the output queue into an I/O display,
+ * for each I/O colouring mode with bold prompts off and on.
+ * <p>
+ * The transcript is either synthetic, in which case it is about 1 MB so that the score is roughly MB per second,
+ * or a tap file recorded using the -debugOutput argument, which is replayed with its recorded chunk boundaries;
+ * specify one using e.g. -p transcript=/tmp/Run-REDUCE-output-....tap.
+ * The setup method prints the transcript length, so that gc.alloc.rate.norm can be converted to bytes per KB.
+ * The STYLED display inserts into a real styled document and so requires a (non-headless) display.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputPipelineBenchmark {
+    private static final int CHUNK_LENGTH = 8192; // as read by REDUCEOutputReader
+    private static final String SYNTHETIC = "synthetic";
+
+    @Param({"NONE", "MODAL", "REDFRONT"})
+    public RRPreferences.ColouredIO colouredIO;
+
+    @Param({"false", "true"})
+    public boolean boldPrompts;
+
+    @Param({SYNTHETIC})
+    public String transcript;
+
+    @Param({"NULL", "STYLED"})
+    public String display;
+
+    private RawOutputTap.Recording recording;
+    private IODisplay ioDisplay;
+    private REDUCEOutputQueue outputQueue;
+    private PromptDetector promptDetector;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException, InvocationTargetException {
+        RRPreferences.colouredIOState = colouredIO;
+        RRPreferences.boldPromptsState = boldPrompts;
+        recording = transcript.equals(SYNTHETIC) ?
+                syntheticRecording(colouredIO == RRPreferences.ColouredIO.REDFRONT) :
+                new RawOutputTap.Recording(Paths.get(transcript));
+        long length = 0;
+        for (byte[] chunk : recording.chunks) length += chunk.length;
+        System.out.format("%nTranscript length %d bytes in %d chunks%n", length, recording.chunks.size());
+        SwingUtilities.invokeAndWait(() -> {
+            ioDisplay = display.equals("STYLED") ? new StyledIODisplay() : new NullIODisplay();
+            outputQueue = new REDUCEOutputQueue(ioDisplay);
+            outputQueue.fastForwardEnabled = false; // display all the output every time
+        });
+        promptDetector = new PromptDetector();
+    }
+
+    /**
+     * Return a recording of about a megabyte of output from a session of short statements,
+     * in which each response and the following prompt is a burst read in chunks.
+     */
+    static RawOutputTap.Recording syntheticRecording(boolean redfront) {
+        RawOutputTap.Recording recording = new RawOutputTap.Recording(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder("Reduce (Free CSL version), 01-Jan-20 ...\n\n");
+        for (int i = 1, length = 0; length < 1 << 20; i++) {
+            String prompt = i + ": ";
+            sb.append(redfront ? RedfrontParser.PROMPT_START + prompt + RedfrontParser.PROMPT_END : prompt);
+            byte[] burst = sb.toString().getBytes(StandardCharsets.UTF_8);
+            for (int start = 0; start < burst.length; start += CHUNK_LENGTH) {
+                int end = Math.min(start + CHUNK_LENGTH, burst.length);
+                byte[] chunk = new byte[end - start];
+                System.arraycopy(burst, start, chunk, 0, chunk.length);
+                recording.add(chunk, 0, end == burst.length ? RawOutputTap.END_OF_BURST : 0);
+            }
+            length += burst.length;
+            sb.setLength(0);
+            sb.append("\r\n");
+            if (redfront) sb.append(RedfrontParser.ALG_OUTPUT_START);
+            for (int j = 0; j < i % 8; j++) sb.append("x").append(j).append(" := ").append(i * j).append("\r\n");
+            sb.append("df(sin(x)**").append(i).append(",x) := ").append(i).append("*cos(x)*sin(x)**").append(i - 1);
+            if (redfront) sb.append(RedfrontParser.ALG_OUTPUT_END);
+            sb.append("\r\n\r\n");
+        }
+        return recording;
+    }
+
+    /**
+     * Process the whole transcript and wait until it has been displayed.
+     */
+    @Benchmark
+    public PromptDetector process() throws InterruptedException, InvocationTargetException {
+        new REDUCEOutputReader(recording.replayStream(), recording.charset, outputQueue, promptDetector).run();
+        SwingUtilities.invokeAndWait(() -> {
+            outputQueue.drain();
+            ioDisplay.clear();
+        });
+        return promptDetector;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(OutputPipelineBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
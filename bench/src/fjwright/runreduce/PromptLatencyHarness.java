@@ -0,0 +1,162 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * This class measures end-to-end interactive latency, from sending a statement to REDUCE as the Send Input action does,
+ * via REDUCEPanel.sendStringToREDUCEAndEcho, the input writer, the REDUCE input pipe, FakeREDUCE,
+ * the REDUCE output pipe and REDUCEOutputReader, to the next prompt appearing in the output document,
+ * with several REDUCE panels (tabs) each running its own FakeREDUCE process concurrently.
+ * Each panel sends its next statement as soon as its prompt appears.
+ * It runs headless, so it can be run on a machine with neither a screen nor REDUCE:
+ * <pre>
+ * java -Djava.awt.headless=true -cp CLASSPATH fjwright.runreduce.PromptLatencyHarness
+ *      [-tabs 1,8,64] [-samples N] [-warmup N] [-mode NONE|MODAL|REDFRONT] [FakeREDUCE arguments]
+ * </pre>
+ * where -samples (default 1000) and -warmup (default 100) are numbers of statements per panel.
+ * It prints the median, 99th and 99.9th percentile latencies for each number of panels.
+ */
+public class PromptLatencyHarness {
+    private int samples = 1000;
+    private int warmup = 100;
+    private final List<String> fakeREDUCEArgs = new ArrayList<>();
+
+    // Used only on the event-dispatching thread:
+    private long[] latencies;
+    private int latencyCount;
+    private CountDownLatch finished;
+
+    public static void main(String... args) throws Exception {
+        PromptLatencyHarness harness = new PromptLatencyHarness();
+        int[] tabCounts = {1, 8, 64};
+        RRPreferences.ColouredIO colouredIO = RRPreferences.ColouredIO.NONE;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if (arg.equals("-tabs") && hasValue)
+                tabCounts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+            else if (arg.equals("-samples") && hasValue)
+                harness.samples = Integer.parseInt(args[++i]);
+            else if (arg.equals("-warmup") && hasValue)
+                harness.warmup = Integer.parseInt(args[++i]);
+            else if (arg.equals("-mode") && hasValue)
+                colouredIO = RRPreferences.ColouredIO.valueOf(args[++i]);
+            else
+                harness.fakeREDUCEArgs.add(arg);
+        }
+        if (colouredIO == RRPreferences.ColouredIO.REDFRONT) harness.fakeREDUCEArgs.add("-redfront");
+
+        // Do not let saved preferences start a real REDUCE or select a display that is not being measured:
+        RRPreferences.autoRunVersion = RRPreferences.NONE;
+        RRPreferences.ioDisplayMode = RRPreferences.IODisplayMode.STYLED;
+        RRPreferences.colouredIOIntent = RRPreferences.colouredIOState = colouredIO;
+
+        System.out.format("FakeREDUCE arguments: %s; I/O colouring: %s%n", harness.fakeREDUCEArgs, colouredIO);
+        System.out.println("Tabs     Samples      p50 ms      p99 ms     p999 ms");
+        for (int tabCount : tabCounts) harness.measure(tabCount);
+        System.exit(0);
+    }
+
+    /**
+     * Measure the latency with the specified number of concurrent panels and print the percentiles.
+     */
+    private void measure(int tabCount) throws InterruptedException, InvocationTargetException {
+        List<Tab> tabs = new ArrayList<>();
+        SwingUtilities.invokeAndWait(() -> {
+            latencies = new long[tabCount * samples];
+            latencyCount = 0;
+            finished = new CountDownLatch(tabCount);
+            for (int i = 0; i < tabCount; i++) tabs.add(new Tab());
+        });
+        finished.await();
+        for (Tab tab : tabs) tab.process.destroy();
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        System.out.format("%4d  %10d  %10.3f  %10.3f  %10.3f%n", tabCount, sorted.length,
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999));
+    }
+
+    /**
+     * Return the specified percentile of the sorted latencies in milliseconds.
+     */
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return Double.NaN;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    /**
+     * This class runs FakeREDUCE in a REDUCE panel and sends it a statement each time a new prompt appears.
+     */
+    private class Tab implements DocumentListener {
+        private final REDUCEPanel reducePanel = new REDUCEPanel();
+        private final Document document;
+        private final Process process;
+        private int promptNumber = 1; // expected next
+        private String prompt = "1: ";
+        private long sendNanoTime;    // of the latest statement
+
+        Tab() {
+            // The styled I/O display shows its output in a text pane within a scroll pane:
+            JTextPane textPane = (JTextPane) ((JScrollPane) reducePanel.outputDisplay.getComponent())
+                    .getViewport().getView();
+            document = textPane.getDocument();
+            document.addDocumentListener(this);
+            String[] command = new String[4 + fakeREDUCEArgs.size()];
+            command[0] = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            command[1] = "-cp";
+            command[2] = System.getProperty("java.class.path");
+            command[3] = FakeREDUCE.class.getName();
+            for (int i = 0; i < fakeREDUCEArgs.size(); i++) command[4 + i] = fakeREDUCEArgs.get(i);
+            try {
+                process = reducePanel.start(command, StandardCharsets.UTF_8);
+            } catch (IOException exc) {
+                throw new RuntimeException(exc);
+            }
+        }
+
+        public void insertUpdate(DocumentEvent e) {
+            int length = document.getLength();
+            if (promptNumber < 0 || length < prompt.length()) return;
+            try {
+                if (!document.getText(length - prompt.length(), prompt.length()).equals(prompt)) return;
+            } catch (BadLocationException exc) {
+                exc.printStackTrace();
+                return;
+            }
+            long nanoTime = System.nanoTime();
+            if (promptNumber > warmup + 1) latencies[latencyCount++] = nanoTime - sendNanoTime;
+            if (promptNumber > warmup + samples) {
+                promptNumber = -1; // finished
+                finished.countDown();
+                return;
+            }
+            // The document cannot be changed by its own listener:
+            SwingUtilities.invokeLater(this::send);
+        }
+
+        private void send() {
+            prompt = ++promptNumber + ": ";
+            sendNanoTime = System.nanoTime();
+            reducePanel.sendStringToREDUCEAndEcho("x" + promptNumber + ";\n");
+        }
+
+        public void removeUpdate(DocumentEvent e) {
+        }
+
+        public void changedUpdate(DocumentEvent e) {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package fjwright.runreduce;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.swing.*;
+import javax.swing.text.AttributeSet;
+import java.awt.*;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks parsing marker-heavy redfront output into the output queue,
+ * in chunks the size of the REDUCE output reader's read buffer, draining the queue after each chunk.
+ * Run it with the GC profiler (as main does) and check that gc.alloc.rate.norm is near zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedfrontParserBenchmark {
+    private static final int CHUNK_LENGTH = 8192;
+
+    @Param({"1", "4096"})
+    public int statementsPerPrompt; // 1 gives about four markers per 30 characters
+
+    private char[] transcript;
+    private REDUCEOutputQueue outputQueue;
+    private RedfrontParser parser;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; sb.length() < 1 << 20; i++) {
+            sb.append(RedfrontParser.PROMPT_START).append(i).append(": ").append(RedfrontParser.PROMPT_END);
+            for (int j = 0; j < statementsPerPrompt; j++)
+                sb.append('x').append(j).append(";\r\n").append(RedfrontParser.ALG_OUTPUT_START)
+                        .append('x').append(j).append(" := ").append(7 * j).append(RedfrontParser.ALG_OUTPUT_END).append("\r\n");
+        }
+        transcript = sb.toString().toCharArray();
+        outputQueue = new REDUCEOutputQueue(new NullIODisplay());
+        parser = new RedfrontParser(outputQueue);
+    }
+
+    /**
+     * Parse about a million characters of transcript, so the score is roughly MB per second.
+     */
+    @Benchmark
+    public void parse() {
+        for (int offset = 0; offset < transcript.length; offset += CHUNK_LENGTH) {
+            parser.parse(transcript, offset, Math.min(CHUNK_LENGTH, transcript.length - offset));
+            outputQueue.drain();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedfrontParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
+
+/**
+ * This class provides an I/O display that discards its text, so that benchmarks measure only the output pipeline.
+ */
+class NullIODisplay implements IODisplay {
+    private final JPanel component = new JPanel();
+    long length; // total length of text appended, so that the appends are not dead code
+
+    public JComponent getComponent() {
+        return component;
+    }
+
+    public void append(CharSequence text, int start, int end, AttributeSet attributes) {
+        length += end - start;
+    }
+
+    public void skip(CharSequence text, int start, int end) {
+        length += end - start;
+    }
+
+    public void appendDone() {
+    }
+
+    public boolean endsWith(String s) {
+        return false;
+    }
+
+    public void removeTail(int n) {
+    }
+
+    public void write(Writer out) {
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public void dispose() {
+    }
+
+    public void setFont(Font font) {
+    }
+
+    public void setBackground(Color color) {
+    }
+}
@@ -0,0 +1,327 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import javax.swing.text.*;
+import java.awt.*;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This interface represents the Input/Output Display of a REDUCE panel,
+ * into which REDUCEOutputQueue inserts styled runs of REDUCE output and echoed input.
+ * All methods must be called on the event-dispatching thread.
+ */
+interface IODisplay {
+    /**
+     * The component that displays the text, which should be added to the REDUCE panel.
+     */
+    JComponent getComponent();
+
+    /**
+     * Append the characters start (inclusive) to end (exclusive) of the specified text
+     * with the specified attributes (which may be null).
+     */
+    void append(CharSequence text, int start, int end, AttributeSet attributes);
+
+    /**
+     * Add the characters start (inclusive) to end (exclusive) of the specified text to the session log
+     * without necessarily displaying them. Text displayed before the flood stays displayed,
+     * but the screenful appended after the previous skip of the same flood may be skipped too.
+     * This is used to skip text in fast-forward mode.
+     */
+    void skip(CharSequence text, int start, int end);
+
+    /**
+     * Complete a batch of appends, e.g. by making the end of the text visible.
+     */
+    void appendDone();
+
+    /**
+     * Return true if the text ends with the specified string.
+     */
+    boolean endsWith(String s);
+
+    /**
+     * Remove the last n characters of the text.
+     */
+    void removeTail(int n);
+
+    /**
+     * Write the full session log, including any text no longer displayed, to out.
+     */
+    void write(Writer out) throws IOException;
+
+    /**
+     * Remove all text, including any text no longer displayed.
+     */
+    void clear();
+
+    /**
+     * Release any resources, such as temporary files, held by a display that will not be used again.
+     */
+    void dispose();
+
+    void setFont(Font font);
+
+    void setBackground(Color color);
+}
+
+/**
+ * This class provides the standard I/O display, which is a non-editable JTextPane.
+ * It is kept within the scrollback limit by moving text from its head to a spill file.
+ * Text skipped in fast-forward mode is kept in a spill file of its own and displayed as a one-line gap marker,
+ * which the session log replaces by the skipped text.
+ */
+class StyledIODisplay implements IODisplay {
+    private static final SimpleAttributeSet gapAttributeSet = new SimpleAttributeSet();
+
+    static {
+        StyleConstants.setForeground(gapAttributeSet, Color.gray);
+        StyleConstants.setItalic(gapAttributeSet, true);
+    }
+
+    private final JTextPane outputTextPane;
+    private final StyledDocument styledDoc;
+    private final JScrollPane outputScrollPane;
+    private final ScrollbackSpillFile spillFile = new ScrollbackSpillFile();
+    private final List<Gap> gaps = new ArrayList<>(); // in document order
+    private boolean skipping; // between a skip and the end of its batch of appends
+
+    /**
+     * This class represents text skipped in fast-forward mode, which is displayed as a gap marker.
+     */
+    private static class Gap {
+        final ScrollbackSpillFile skipped = new ScrollbackSpillFile();
+        Position start;    // of the marker
+        int markerLength;
+        String prefix;     // of the marker, to start it on a new line
+        long lines;        // skipped
+        boolean open;      // text displayed after the marker may still be added to the gap
+    }
+
+    StyledIODisplay() {
+        // Create the non-editable vertically-scrollable output text area:
+        outputTextPane = new JTextPane();
+        outputTextPane.setFont(RunREDUCE.reduceFont);
+        outputTextPane.setEditable(false);
+        styledDoc = outputTextPane.getStyledDocument();
+        outputScrollPane = new JScrollPane(outputTextPane);
+    }
+
+    public JComponent getComponent() {
+        return outputScrollPane;
+    }
+
+    public void append(CharSequence text, int start, int end, AttributeSet attributes) {
+        // Only the newest screenful appended with a skip can join a later skip of the same flood:
+        if (!skipping && !gaps.isEmpty()) gaps.get(gaps.size() - 1).open = false;
+        try {
+            styledDoc.insertString(styledDoc.getLength(), text.subSequence(start, end).toString(), attributes);
+        } catch (BadLocationException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    /**
+     * Add the skipped text to the open gap, together with the screenful displayed after its marker
+     * by the previous skip, or else to a new gap, and update the gap marker.
+     */
+    public void skip(CharSequence text, int start, int end) {
+        if (start >= end) return;
+        skipping = true;
+        try {
+            Gap gap = gaps.isEmpty() ? null : gaps.get(gaps.size() - 1);
+            if (gap != null && gap.open) {
+                int markerEnd = gap.start.getOffset() + gap.markerLength;
+                String displayed = styledDoc.getText(markerEnd, styledDoc.getLength() - markerEnd);
+                gap.skipped.append(displayed);
+                gap.lines += countLines(displayed, 0, displayed.length());
+                styledDoc.remove(gap.start.getOffset(), styledDoc.getLength() - gap.start.getOffset());
+            } else {
+                gap = new Gap();
+                int length = styledDoc.getLength();
+                gap.prefix = length == 0 || styledDoc.getText(length - 1, 1).equals("\n") ? "" : "\n";
+                gap.open = true;
+                gaps.add(gap);
+            }
+            gap.skipped.append(text.subSequence(start, end).toString());
+            gap.lines += countLines(text, start, end);
+            String marker = gap.prefix + "[... " + gap.lines +
+                    " lines of output skipped in fast-forward mode; Save Session Log... includes them ...]\n";
+            int markerStart = styledDoc.getLength();
+            styledDoc.insertString(markerStart, marker, gapAttributeSet);
+            gap.start = styledDoc.createPosition(markerStart);
+            gap.markerLength = marker.length();
+        } catch (BadLocationException | IOException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    private static long countLines(CharSequence text, int start, int end) {
+        long lines = 0;
+        for (int i = start; i < end; i++) if (text.charAt(i) == '\n') lines++;
+        return lines;
+    }
+
+    public void appendDone() {
+        skipping = false;
+        trimScrollback();
+        outputTextPane.setCaretPosition(styledDoc.getLength());
+    }
+
+    /**
+     * If the document exceeds the scrollback limit by more than a quarter then trim it back to the limit
+     * by moving complete lines from its head to the spill file.
+     * Trimming in large batches keeps the cost per inserted character small.
+     */
+    private void trimScrollback() {
+        int limit = RRPreferences.scrollbackLimit;
+        if (limit <= 0) return; // unlimited
+        Element root = styledDoc.getDefaultRootElement();
+        int trimEnd;
+        if (RRPreferences.scrollbackUnit == RRPreferences.ScrollbackUnit.LINES) {
+            int excess = root.getElementCount() - limit;
+            if (excess <= limit / 4) return;
+            trimEnd = root.getElement(excess - 1).getEndOffset();
+        } else { // limit is in KB, treating each character as a byte
+            long limitLength = 1024L * limit;
+            long excess = styledDoc.getLength() - limitLength;
+            if (excess <= limitLength / 4) return;
+            trimEnd = root.getElement(root.getElementIndex((int) excess)).getEndOffset();
+        }
+        trimEnd = Math.min(trimEnd, styledDoc.getLength());
+        // Never split a gap marker, which may start at the end of a line:
+        for (Gap gap : gaps)
+            if (gap.start.getOffset() < trimEnd)
+                trimEnd = Math.max(trimEnd, gap.start.getOffset() + gap.markerLength);
+        try {
+            Writer spillWriter = spillFile.writer();
+            copyText(0, trimEnd, spillWriter);
+            spillWriter.flush();
+            while (!gaps.isEmpty() && gaps.get(0).start.getOffset() < trimEnd) gaps.remove(0).skipped.delete();
+            styledDoc.remove(0, trimEnd);
+        } catch (BadLocationException | IOException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the document text from start to end to out, replacing each gap marker within it by the skipped text.
+     */
+    private void copyText(int start, int end, Writer out) throws BadLocationException, IOException {
+        for (Gap gap : gaps) {
+            int gapStart = gap.start.getOffset();
+            if (gapStart < start || gapStart >= end) continue;
+            out.write(styledDoc.getText(start, gapStart - start));
+            gap.skipped.copyTo(out);
+            start = Math.min(gapStart + gap.markerLength, end);
+        }
+        out.write(styledDoc.getText(start, end - start));
+    }
+
+    public boolean endsWith(String s) {
+        int length = styledDoc.getLength(), n = s.length();
+        try {
+            return length >= n && styledDoc.getText(length - n, n).equals(s);
+        } catch (BadLocationException exc) {
+            exc.printStackTrace();
+            return false;
+        }
+    }
+
+    public void removeTail(int n) {
+        try {
+            styledDoc.remove(styledDoc.getLength() - n, n);
+        } catch (BadLocationException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    public void write(Writer out) throws IOException {
+        // Text trimmed by the scrollback limit precedes the displayed text:
+        spillFile.copyTo(out);
+        try {
+            copyText(0, styledDoc.getLength(), out);
+        } catch (BadLocationException exc) {
+            throw new IOException(exc);
+        }
+    }
+
+    public void clear() {
+        try {
+            styledDoc.remove(0, styledDoc.getLength());
+        } catch (BadLocationException exc) {
+            exc.printStackTrace();
+        }
+        spillFile.delete();
+        for (Gap gap : gaps) gap.skipped.delete();
+        gaps.clear();
+    }
+
+    public void dispose() {
+        clear();
+    }
+
+    public void setFont(Font font) {
+        outputTextPane.setFont(font);
+    }
+
+    public void setBackground(Color color) {
+        outputTextPane.setBackground(color);
+    }
+}
+
+/**
+ * This class holds the text trimmed from the head of an I/O display in a temporary file,
+ * which is created when first needed and deleted when Run-REDUCE exits.
+ */
+class ScrollbackSpillFile {
+    private Path path;
+    private Writer writer;
+
+    void append(String text) throws IOException {
+        if (text.isEmpty()) return;
+        writer().write(text);
+        writer.flush();
+    }
+
+    /**
+     * Return the writer that appends to the file, creating the file if necessary.
+     * Flush it after writing.
+     */
+    Writer writer() throws IOException {
+        if (writer == null) {
+            path = Files.createTempFile("Run-REDUCE-", ".log");
+            path.toFile().deleteOnExit();
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        }
+        return writer;
+    }
+
+    void copyTo(Writer out) throws IOException {
+        if (path == null) return;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            int length;
+            while ((length = reader.read(buffer)) != -1) out.write(buffer, 0, length);
+        }
+    }
+
+    void delete() {
+        if (path == null) return;
+        try {
+            writer.close();
+            Files.deleteIfExists(path);
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+        writer = null;
+        path = null;
+    }
+}
@@ -0,0 +1,263 @@
+package fjwright.runreduce;
+
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class recognises REDUCE input prompts incrementally as REDUCE output arrives.
+ * It tracks only the current (last) line of output, which is a prompt if it is exactly
+ * an algebraic-mode prompt "N: " or a symbolic-mode prompt "N* ",
+ * or a sequence of them such as "2: 3: ", which REDUCE outputs after a statement terminated by $,
+ * and a question if it contains "?", as do the prompts output by REDUCE queries such as YESP.
+ * A line containing "break>" is a Lisp break-loop prompt, such as PSL outputs after an interrupt or error.
+ * Carriage returns and redfront markup are ignored, so the same detector works in all I/O colouring modes.
+ * <p>
+ * The output reader scans each chunk of output as it is read;
+ * the results of the latest scan are published as session state to any thread,
+ * which can also await the next prompt, or the next line that awaits input of any kind, asynchronously.
+ */
+class PromptDetector {
+    enum Mode {ALGEBRAIC, SYMBOLIC}
+
+    // States of the current line:
+    private static final int START = 0;          // empty
+    private static final int NUMBER = 1;         // digits
+    private static final int ALGEBRAIC_MARK = 2; // digits and ':'
+    private static final int SYMBOLIC_MARK = 3;  // digits and '*'
+    private static final int PROMPT = 4;         // digits, ':' or '*', and space
+    private static final int OTHER = 5;          // anything else
+    private static final char[] BREAK_PROMPT = "break>".toCharArray();
+
+    // Output thread state:
+    private int state = START;
+    private int number;          // digits read so far in the current line
+    private boolean question;    // current line contains '?'
+    private int length;          // of the current line, excluding ignored characters
+    private Mode lineMode;       // mode of the prompt in the current line
+    private int breakMatched;    // number of characters of BREAK_PROMPT matched at the end of the current line
+    private boolean breakLoop;   // current line contains BREAK_PROMPT
+
+    // Published session state:
+    private volatile boolean prompt;
+    private volatile boolean questionPrompt;
+    private volatile boolean breakPrompt;
+    private volatile int promptNumber;
+    private volatile Mode mode = Mode.ALGEBRAIC;
+
+    // Futures awaiting the next prompt or input line, completed by the scanning thread:
+    private final List<CompletableFuture<Integer>> promptFutures = new ArrayList<>(); // guarded by this
+    private final List<CompletableFuture<Integer>> inputFutures = new ArrayList<>();  // guarded by this
+    private boolean ended; // guarded by this
+
+    /**
+     * Scan length characters of the specified array starting at offset,
+     * which follow the characters previously scanned, and publish the results.
+     * Only the characters after the last newline need to be examined.
+     */
+    void scan(char[] chars, int offset, int length) {
+        int end = offset + length, i = end;
+        while (i > offset && chars[i - 1] != '\n') i--;
+        if (i > offset) {
+            state = START;
+            number = 0;
+            question = false;
+            this.length = 0;
+            breakMatched = 0;
+            breakLoop = false;
+        }
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c == '\r' || (c >= RedfrontParser.PROMPT_START && c <= RedfrontParser.ALG_OUTPUT_END))
+                continue;
+            this.length++;
+            if (c == '?') question = true;
+            if (c == BREAK_PROMPT[breakMatched]) {
+                if (++breakMatched == BREAK_PROMPT.length) {
+                    breakLoop = true;
+                    breakMatched = 0;
+                }
+            } else breakMatched = c == BREAK_PROMPT[0] ? 1 : 0;
+            switch (state) {
+                case START:
+                case NUMBER:
+                    if (c >= '0' && c <= '9') {
+                        number = 10 * number + (c - '0');
+                        state = NUMBER;
+                    } else if (state == NUMBER && c == ':') state = ALGEBRAIC_MARK;
+                    else if (state == NUMBER && c == '*') state = SYMBOLIC_MARK;
+                    else state = OTHER;
+                    break;
+                case ALGEBRAIC_MARK:
+                case SYMBOLIC_MARK:
+                    if (c == ' ') {
+                        lineMode = state == ALGEBRAIC_MARK ? Mode.ALGEBRAIC : Mode.SYMBOLIC;
+                        state = PROMPT;
+                    } else state = OTHER;
+                    break;
+                case PROMPT:
+                    if (c >= '0' && c <= '9') { // a following prompt
+                        number = c - '0';
+                        state = NUMBER;
+                    } else state = OTHER;
+                    break;
+            }
+        }
+        if (state == PROMPT) {
+            promptNumber = number;
+            mode = lineMode;
+        }
+        questionPrompt = question;
+        breakPrompt = breakLoop;
+        prompt = state == PROMPT;
+        if (prompt) complete(promptFutures, promptNumber);
+        if (prompt || question || breakLoop) complete(inputFutures, prompt ? promptNumber : 0);
+    }
+
+    /**
+     * Return a future that completes with the prompt number when the output next ends with a numbered prompt,
+     * immediately if it already does, or exceptionally if the output ends first.
+     * Dependent actions run on the scanning thread unless they specify an executor.
+     */
+    synchronized CompletableFuture<Integer> awaitPrompt() {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        if (prompt) future.complete(promptNumber);
+        else if (ended) future.completeExceptionally(new EOFException("REDUCE output has ended"));
+        else promptFutures.add(future);
+        return future;
+    }
+
+    /**
+     * Return a future that completes when the output next ends with a line that awaits input,
+     * i.e. a numbered prompt, a question or a break-loop prompt, but not with output already scanned,
+     * with the prompt number or 0 if it is not a numbered prompt, or exceptionally if the output ends first.
+     * Dependent actions run on the scanning thread unless they specify an executor.
+     */
+    synchronized CompletableFuture<Integer> awaitNextInputLine() {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        if (ended) future.completeExceptionally(new EOFException("REDUCE output has ended"));
+        else inputFutures.add(future);
+        return future;
+    }
+
+    private void complete(List<CompletableFuture<Integer>> futureList, int value) {
+        List<CompletableFuture<Integer>> futures;
+        synchronized (this) {
+            if (futureList.isEmpty()) return;
+            futures = new ArrayList<>(futureList);
+            futureList.clear();
+        }
+        for (CompletableFuture<Integer> future : futures) future.complete(value);
+    }
+
+    /**
+     * Record that the output has ended, so that no more prompts will arrive.
+     * This method should only be called by the thread that calls scan.
+     */
+    void end() {
+        List<CompletableFuture<Integer>> futures;
+        synchronized (this) {
+            ended = true;
+            futures = new ArrayList<>(promptFutures);
+            futures.addAll(inputFutures);
+            promptFutures.clear();
+            inputFutures.clear();
+        }
+        for (CompletableFuture<Integer> future : futures)
+            future.completeExceptionally(new EOFException("REDUCE output has ended"));
+    }
+
+    /**
+     * Return the number of statements in the specified REDUCE input, each of which is followed by a new prompt,
+     * i.e. the number of terminators ; and $ that are not in strings or % comments.
+     */
+    static int countStatements(String input) {
+        int count = 0;
+        boolean string = false, comment = false;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (comment) {
+                if (c == '\n') comment = false;
+            } else if (c == '"') string = !string;
+            else if (!string) {
+                if (c == '%') comment = true;
+                else if (c == ';' || c == '$') count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the statements in the specified input, without their terminators or any comments,
+     * followed by any incomplete final statement if it is not blank.
+     */
+    static List<String> splitStatements(String input) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder statement = new StringBuilder();
+        boolean string = false, comment = false;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (comment) {
+                if (c == '\n') comment = false;
+                else continue;
+            } else if (c == '"') string = !string;
+            else if (!string) {
+                if (c == '%') {
+                    comment = true;
+                    continue;
+                } else if (c == ';' || c == '$') {
+                    statements.add(statement.toString());
+                    statement.setLength(0);
+                    continue;
+                }
+            }
+            statement.append(c);
+        }
+        if (!statement.toString().isBlank()) statements.add(statement.toString());
+        return statements;
+    }
+
+    /**
+     * Return true if the output scanned so far ends with a numbered input prompt.
+     */
+    boolean isPrompt() {
+        return prompt;
+    }
+
+    /**
+     * Return true if the last line of output scanned so far is a break-loop prompt.
+     */
+    boolean isBreakPrompt() {
+        return breakPrompt;
+    }
+
+    /**
+     * Return the length of the current line, which is the length of the prompt if isPrompt() is true.
+     * This method should only be called by the thread that calls scan.
+     */
+    int getLineLength() {
+        return length;
+    }
+
+    /**
+     * Return true if the last line of output scanned so far contains "?".
+     */
+    boolean isQuestionPrompt() {
+        return questionPrompt;
+    }
+
+    /**
+     * Return the number of the latest numbered input prompt.
+     */
+    int getPromptNumber() {
+        return promptNumber;
+    }
+
+    /**
+     * Return the mode of the latest numbered input prompt.
+     */
+    Mode getMode() {
+        return mode;
+    }
+}
@@ -0,0 +1,228 @@
+package fjwright.runreduce;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs REDUCE on many input files without a GUI, using the saved REDUCE configuration,
+ * with up to a specified number of REDUCE processes running concurrently.
+ * It is invoked by the -batch argument, which must be followed only by batch arguments:
+ * <pre>
+ * java -jar Run-REDUCE.jar -batch [-version VERSION] [-jobs N] [-output DIR] [-timeout SECONDS] FILE...
+ * </pre>
+ * Each file is read into a separate REDUCE process using the REDUCE in command,
+ * with its directory as the working directory, and the transcript is written to DIR/NAME.log as it is output,
+ * where NAME is the file name without its extension.
+ * A summary of the wall-clock time, CPU time and exit status of each file is then printed.
+ */
+class REDUCEBatch {
+    private static final String LOG_EXTENSION = ".log";
+    private String version;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private Path outputDir = Paths.get("");
+    private long timeoutSeconds; // 0 for no timeout
+    private final List<Path> files = new ArrayList<>();
+
+    /**
+     * This class represents the outcome of running REDUCE once.
+     */
+    static class Outcome {
+        long wallNanos, cpuNanos;
+        String status; // the exit value or why REDUCE did not exit normally
+    }
+
+    /**
+     * This class represents the result of running one input file.
+     */
+    private static class Result extends Outcome {
+        final Path file, transcript;
+
+        Result(Path file, Path transcript) {
+            this.file = file;
+            this.transcript = transcript;
+        }
+    }
+
+    private REDUCEBatch() {
+    }
+
+    /**
+     * Run a batch specified by the arguments following -batch and return the exit status for Run-REDUCE,
+     * which is 0 if REDUCE ran every file and exited normally and 1 otherwise.
+     */
+    static int main(List<String> args) {
+        REDUCEBatch batch = new REDUCEBatch();
+        try {
+            for (Iterator<String> iterator = args.iterator(); iterator.hasNext(); ) {
+                String arg = iterator.next();
+                boolean hasValue = iterator.hasNext();
+                if (arg.equals("-version") && hasValue)
+                    batch.version = iterator.next();
+                else if (arg.equals("-jobs") && hasValue)
+                    batch.jobs = Math.max(Integer.parseInt(iterator.next()), 1);
+                else if (arg.equals("-output") && hasValue)
+                    batch.outputDir = Paths.get(iterator.next());
+                else if (arg.equals("-timeout") && hasValue)
+                    batch.timeoutSeconds = Math.max(Long.parseLong(iterator.next()), 0);
+                else if (arg.startsWith("-")) {
+                    System.err.format("Unrecognised batch argument: %s.%nAllowed batch arguments are: " +
+                            "-version VERSION, -jobs N, -output DIR and -timeout SECONDS, followed by files.%n", arg);
+                    return 1;
+                } else
+                    batch.files.add(Paths.get(arg));
+            }
+        } catch (NumberFormatException exc) {
+            System.err.println("Invalid batch argument: " + exc.getMessage());
+            return 1;
+        }
+        if (batch.files.isEmpty()) {
+            System.err.println("No files to run in batch mode.");
+            return 1;
+        }
+        return batch.run();
+    }
+
+    /**
+     * Return the configured REDUCE command for the specified version, or else the auto-run version,
+     * or else the first version, or null after reporting an error.
+     */
+    private REDUCECommand reduceCommand() {
+        REDUCECommandList reduceCommandList = RunREDUCE.reduceConfiguration.reduceCommandList;
+        String wanted = version != null ? version :
+                !RRPreferences.autoRunVersion.equals(RRPreferences.NONE) ? RRPreferences.autoRunVersion : null;
+        for (REDUCECommand cmd : reduceCommandList)
+            if (wanted == null || cmd.version.equals(wanted)) return cmd;
+        System.err.println(wanted == null ? "No version of REDUCE is configured." :
+                "The version of REDUCE '" + wanted + "' is not configured.");
+        return null;
+    }
+
+    private int run() {
+        REDUCECommand reduceCommand = reduceCommand();
+        if (reduceCommand == null) return 1;
+        String[] command = reduceCommand.buildCommand();
+        if (command == null) return 1;
+        Charset charset = reduceCommand.getCharset();
+        if (charset == null) return 1;
+        try {
+            Files.createDirectories(outputDir);
+        } catch (IOException exc) {
+            System.err.println("Cannot create batch output directory: " + exc);
+            return 1;
+        }
+
+        // Give each file its own transcript, even if several files have the same name:
+        List<Result> results = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+            String uniqueName = name;
+            for (int i = 2; !names.add(uniqueName); i++) uniqueName = name + "-" + i;
+            results.add(new Result(file, outputDir.resolve(uniqueName + LOG_EXTENSION)));
+        }
+
+        System.err.format("Running %d file(s) using %s with up to %d concurrent REDUCE process(es)...%n",
+                results.size(), reduceCommand.version, jobs);
+        Semaphore slots = new Semaphore(jobs);
+        CountDownLatch finished = new CountDownLatch(results.size());
+        for (Result result : results) {
+            slots.acquireUninterruptibly();
+            REDUCEIOScheduler.execute("REDUCE batch " + result.file.getFileName(), () -> {
+                try {
+                    runFile(command, charset, result);
+                } finally {
+                    slots.release();
+                    finished.countDown();
+                }
+            });
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException exc) {
+            return 1;
+        }
+
+        boolean allOK = true;
+        System.out.format("%-40s %10s %10s  %s%n", "File", "Wall s", "CPU s", "Exit status");
+        for (Result result : results) {
+            System.out.format("%-40s %10.3f %10.3f  %s%n",
+                    result.file, result.wallNanos / 1e9, result.cpuNanos / 1e9, result.status);
+            allOK &= result.status.equals("0");
+        }
+        System.out.format("Transcripts are in %s.%n", outputDir.toAbsolutePath());
+        return allOK ? 0 : 1;
+    }
+
+    /**
+     * Run REDUCE on the file of the specified result, write the transcript and record the outcome.
+     */
+    private void runFile(String[] command, Charset charset, Result result) {
+        Path dir = result.file.toAbsolutePath().getParent();
+        String input = "in \"" + result.file.getFileName().toString().replace("\"", "\"\"") + "\"$\nbye;\n";
+        try (OutputStream transcript = Files.newOutputStream(result.transcript)) {
+            run(command, charset, dir, input, timeoutSeconds, transcript, result);
+        } catch (IOException exc) {
+            result.status = "error: " + exc.getMessage();
+        }
+    }
+
+    /**
+     * Run the specified REDUCE command in the specified directory on the specified input,
+     * copy its output to the specified stream as it is output, and record the outcome.
+     * REDUCE is killed if it runs for longer than the specified timeout, unless it is 0.
+     */
+    static void run(String[] command, Charset charset, Path dir, String input, long timeoutSeconds,
+                    OutputStream output, Outcome outcome) {
+        long startNanos = System.nanoTime();
+        try {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            if (dir != null) pb.directory(dir.toFile());
+            pb.redirectErrorStream(true);
+            Process p = pb.start();
+            REDUCEPanel.processes.add(p);
+            AtomicLong cpuNanos = REDUCETelemetry.trackCPU(p);
+            // Stop REDUCE if it runs for too long, which also ends the read below:
+            AtomicBoolean timedOut = new AtomicBoolean();
+            if (timeoutSeconds > 0) p.onExit().orTimeout(timeoutSeconds, TimeUnit.SECONDS).exceptionally(exc -> {
+                timedOut.set(true);
+                p.descendants().forEach(ProcessHandle::destroyForcibly);
+                p.destroyForcibly();
+                return null;
+            });
+            try {
+                try (OutputStream in = p.getOutputStream()) {
+                    in.write(input.getBytes(charset));
+                }
+                // The CPU time cannot be read once REDUCE has ended, so also sample it after each output:
+                byte[] bytes = new byte[8192];
+                try (InputStream out = p.getInputStream()) {
+                    for (int length; (length = out.read(bytes)) != -1; ) {
+                        output.write(bytes, 0, length);
+                        cpuNanos.accumulateAndGet(REDUCETelemetry.cpuNanos(p), Math::max);
+                    }
+                }
+                int exitValue = p.waitFor();
+                outcome.status = timedOut.get() ? "timed out after " + timeoutSeconds + " s" : exitValue + "";
+            } finally {
+                p.descendants().forEach(ProcessHandle::destroy);
+                p.destroy();
+                REDUCEPanel.processes.remove(p);
+            }
+            outcome.cpuNanos = cpuNanos.get();
+        } catch (IOException exc) {
+            outcome.status = "error: " + exc.getMessage();
+        } catch (InterruptedException exc) {
+            outcome.status = "interrupted";
+        }
+        outcome.wallNanos = System.nanoTime() - startNanos;
+    }
+}
@@ -30,6 +30,11 @@ public class REDUCEConfigDialog extends JDialog {
     private JTextField versionNameTextField;
     private JTextField versionRootDirTextField;
     private JTextField commandPathNameTextField;
+    private JTextField encodingTextField;
+    private JTextField poolSizeTextField;
+    private JTextField poolMemoryCapTextField;
+    private JTextField warmUpScriptTextField;
+    private JTextField imageScriptTextField;
     private Color backgroundColor;
     private final Insets textInsets = new Insets(0, 0, 3, 0);
     private final Font textAreaFont = new JTextField().getFont();
@@ -343,6 +348,52 @@ public class REDUCEConfigDialog extends JDialog {
             gbc.insets = insets;
             commandPane.add(args[i], gbc);
         }
+
+        encodingTextField = addCommandField(commandPane, 4 + nArgs, insets, textFieldColumns, "Encoding",
+                "The character encoding of REDUCE input and output, " +
+                        "normally UTF-8, but e.g. windows-1252 or ISO-8859-1 for some older versions of REDUCE.");
+        poolSizeTextField = addCommandField(commandPane, 5 + nArgs, insets, textFieldColumns, "Pool Size",
+                "The number of idle REDUCE processes to keep started in the background, " +
+                        "so that running this version is immediate, or 0 for none.");
+        poolMemoryCapTextField = addCommandField(commandPane, 6 + nArgs, insets, textFieldColumns,
+                "Pool Memory Cap (MB)",
+                "The maximum total memory used by idle REDUCE processes of this version, or 0 for no limit " +
+                        "(which is only enforced on platforms such as Linux that report the memory used).");
+        warmUpScriptTextField = addCommandField(commandPane, 7 + nArgs, insets, textFieldColumns, "Warm-up Script",
+                "Optional REDUCE statements, each terminated by ; or $, " +
+                        "that each idle REDUCE process runs before it is used, e.g. load_package gnuplot;");
+        imageScriptTextField = addCommandField(commandPane, 8 + nArgs, insets, textFieldColumns, "Image Script",
+                "Optional REDUCE statements, each terminated by ; or $, that are run once to save a session image, " +
+                        "which is offered as a separate version in the Run REDUCE menu, e.g. load_package excalc;");
+    }
+
+    /**
+     * Add a labelled text field in the specified row of the command pane and return the text field.
+     */
+    private JTextField addCommandField(JPanel commandPane, int row, Insets insets, int columns,
+                                       String label, String toolTipText) {
+        final JLabel jLabel = new JLabel(label);
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.gridx = 0;
+        gbc.gridy = row;
+        gbc.weightx = 0;
+        gbc.weighty = 1.0;
+        gbc.anchor = GridBagConstraints.WEST;
+        gbc.insets = insets;
+        commandPane.add(jLabel, gbc);
+        JTextField textField = newJTextField(columns);
+        jLabel.setLabelFor(textField);
+        textField.setToolTipText(toolTipText);
+        gbc = new GridBagConstraints();
+        gbc.gridx = 1;
+        gbc.gridy = row;
+        gbc.weightx = 1.0;
+        gbc.weighty = 1.0;
+        gbc.anchor = GridBagConstraints.WEST;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.insets = insets;
+        commandPane.add(textField, gbc);
+        return textField;
     }
 
     private JTextArea newJTextArea(String text) {
@@ -404,12 +455,19 @@ public class REDUCEConfigDialog extends JDialog {
         ArrayList<PlainDocument> command = cmd.command;
         commandPathNameTextField.setDocument(command.get(0));
         for (int i = 0; i < nArgs; i++) args[i].setDocument(command.get(i + 1));
+        encodingTextField.setDocument(cmd.encoding);
+        poolSizeTextField.setDocument(cmd.poolSize);
+        poolMemoryCapTextField.setDocument(cmd.poolMemoryCap);
+        warmUpScriptTextField.setDocument(cmd.warmUpScript);
+        imageScriptTextField.setDocument(cmd.imageScript);
     }
 
     private void onSave() {
         // Write form data back to REDUCEConfiguration:
         reduceConfigData.save();
         RunREDUCE.reduceConfiguration.save();
+        REDUCEProcessPool.configure(RunREDUCE.reduceConfiguration.reduceCommandList);
+        REDUCESessionImage.configure(RunREDUCE.reduceConfiguration.reduceCommandList);
         setVisible(false);
     }
 
@@ -436,6 +494,7 @@ public class REDUCEConfigDialog extends JDialog {
                 oldCmd.version.getText() + " NEW",
                 oldCmd.versionRootDir.getText(),
                 oldCmd.command.stream().map(PlainDocument::getText).toArray(String[]::new));
+        newCmd.copySettings(oldCmd);
         reduceCommandDocumentsList.add(selectedIndex, newCmd);
         reduceCommandDocumentsList.insertUpdate(selectedIndex);
         versionsJList.setSelectedIndex(selectedIndex);
@@ -499,17 +558,39 @@ class PlainDocument extends javax.swing.text.PlainDocument {
             e.printStackTrace();
         }
     }
+
+    void setText(String str) {
+        try {
+            replace(0, getLength(), str, null);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
 }
 
 class REDUCECommandDocuments {
     PlainDocument version;
     PlainDocument versionRootDir;
     ArrayList<PlainDocument> command;
+    PlainDocument encoding = new PlainDocument();
+    PlainDocument poolSize = new PlainDocument();
+    PlainDocument poolMemoryCap = new PlainDocument();
+    PlainDocument warmUpScript = new PlainDocument();
+    PlainDocument imageScript = new PlainDocument();
 
     REDUCECommandDocuments(String version) {
         this(version, "", "");
     }
 
+    REDUCECommandDocuments(REDUCECommand cmd) {
+        this(cmd.version, cmd.versionRootDir, cmd.command);
+        encoding.setText(cmd.encoding);
+        poolSize.setText(String.valueOf(cmd.poolSize));
+        poolMemoryCap.setText(String.valueOf(cmd.poolMemoryCap));
+        warmUpScript.setText(cmd.warmUpScript);
+        imageScript.setText(cmd.imageScript);
+    }
+
     REDUCECommandDocuments(String version, String versionRootDir, String... command) {
         this.version = new PlainDocument();
         this.version.insertString(version);
@@ -522,6 +603,23 @@ class REDUCECommandDocuments {
             doc.insertString(i < command.length ? command[i] : "");
             this.command.add(doc);
         }
+        REDUCECommand cmdDefault = new REDUCECommand();
+        encoding.insertString(cmdDefault.encoding);
+        poolSize.insertString(String.valueOf(cmdDefault.poolSize));
+        poolMemoryCap.insertString(String.valueOf(cmdDefault.poolMemoryCap));
+        warmUpScript.insertString(cmdDefault.warmUpScript);
+        imageScript.insertString(cmdDefault.imageScript);
+    }
+
+    /**
+     * Copy the settings other than the version and command from the specified REDUCE command documents.
+     */
+    void copySettings(REDUCECommandDocuments cmd) {
+        encoding.setText(cmd.encoding.getText());
+        poolSize.setText(cmd.poolSize.getText());
+        poolMemoryCap.setText(cmd.poolMemoryCap.getText());
+        warmUpScript.setText(cmd.warmUpScript.getText());
+        imageScript.setText(cmd.imageScript.getText());
     }
 
     private static class VersionDocumentListener implements DocumentListener {
@@ -549,7 +647,7 @@ class REDUCECommandDocumentsList extends AbstractListModel<PlainDocument> implem
 
     REDUCECommandDocumentsList(REDUCEConfigurationType reduceConfiguration) {
         for (REDUCECommand cmd : reduceConfiguration.reduceCommandList)
-            reduceCommandDocumentsList.add(new REDUCECommandDocuments(cmd.version, cmd.versionRootDir, cmd.command));
+            reduceCommandDocumentsList.add(new REDUCECommandDocuments(cmd));
     }
 
     // ArrayList methods that I use:
@@ -651,16 +749,41 @@ class REDUCEConfigData {
         RunREDUCE.reduceConfiguration.packagesRootDir = packagesRootDir.getText().trim();
         RunREDUCE.reduceConfiguration.reduceCommandList = new REDUCECommandList();
         for (REDUCECommandDocuments cmd : reduceCommandDocumentsList) {
-            RunREDUCE.reduceConfiguration.reduceCommandList.add(new REDUCECommand(
+            REDUCECommand reduceCommand = new REDUCECommand(
                     cmd.version.getText().trim(),
                     cmd.versionRootDir.getText().trim(),
                     // Do not save blank arguments:
                     cmd.command.stream().map(e -> e.getText().trim()).
-                            filter(e -> !e.isEmpty()).toArray(String[]::new)));
+                            filter(e -> !e.isEmpty()).toArray(String[]::new));
+            String encoding = cmd.encoding.getText().trim();
+            if (!encoding.isEmpty()) reduceCommand.encoding = encoding;
+            reduceCommand.poolSize = parseNonNegativeInt(cmd.poolSize, "Pool Size", reduceCommand.version);
+            reduceCommand.poolMemoryCap =
+                    parseNonNegativeInt(cmd.poolMemoryCap, "Pool Memory Cap", reduceCommand.version);
+            reduceCommand.warmUpScript = cmd.warmUpScript.getText().trim();
+            reduceCommand.imageScript = cmd.imageScript.getText().trim();
+            RunREDUCE.reduceConfiguration.reduceCommandList.add(reduceCommand);
         }
         // Rebuild submenus that depend on RunREDUCECommandList.
         // Only really need to do this if the version list changes in some way!
         RRMenuBar.runREDUCESubmenuBuild();
         RRMenuBar.autoRunREDUCESubmenuBuild();
     }
+
+    /**
+     * Return the non-negative integer in the specified document, or 0 after reporting an error if it is invalid.
+     */
+    private static int parseNonNegativeInt(PlainDocument document, String field, String version) {
+        String text = document.getText().trim();
+        if (text.isEmpty()) return 0;
+        try {
+            int value = Integer.parseInt(text);
+            if (value >= 0) return value;
+        } catch (NumberFormatException ignored) {
+        }
+        RunREDUCE.errorMessageDialog(
+                "The " + field + " '" + text + "' of " + version + " is not a non-negative integer, so 0 is used!",
+                "REDUCE Configuration Error");
+        return 0;
+    }
 }
@@ -3,6 +3,8 @@ package fjwright.runreduce;
 import javax.swing.text.StyleConstants;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -29,6 +31,14 @@ class RRPreferences {
     static final String BOLDPROMPTS = "boldPrompts";
     static final String COLOUREDIO = "colouredIO";
     static final String DISPLAYPANE = "displayPane";
+    static final String SCROLLBACKLIMIT = "scrollbackLimit";
+    static final String SCROLLBACKUNIT = "scrollbackUnit";
+    static final String IODISPLAYMODE = "ioDisplayMode";
+    static final String STATEMENTTIMEOUT = "statementTimeout";
+    static final String STATEMENTCPUTIMEOUT = "statementCPUTimeout";
+    static final String RESULTCACHE = "resultCache";
+    static final String RESULTCACHESIZE = "resultCacheSize";
+    static final String RACECANCELLOSER = "raceCancelLoser";
 
     enum LookAndFeel {JAVA, NATIVE, MOTIF}
 
@@ -36,6 +46,10 @@ class RRPreferences {
 
     enum DisplayPane {SINGLE, SPLIT, TABBED}
 
+    enum ScrollbackUnit {LINES, KILOBYTES}
+
+    enum IODisplayMode {STYLED, VIRTUAL}
+
     static final String NONE = "None";
 
     static int fontSize = Math.max(prefs.getInt(FONTSIZE, 12), 5);
@@ -50,6 +64,21 @@ class RRPreferences {
     static DisplayPane displayPane =
             DisplayPane.valueOf(prefs.get(DISPLAYPANE, DisplayPane.SPLIT.toString())); // temporary!
     static ColouredIO colouredIOState = colouredIOIntent;
+    // Maximum size of each I/O display; 0 means unlimited:
+    static int scrollbackLimit = Math.max(prefs.getInt(SCROLLBACKLIMIT, 100_000), 0);
+    static ScrollbackUnit scrollbackUnit =
+            ScrollbackUnit.valueOf(prefs.get(SCROLLBACKUNIT, ScrollbackUnit.LINES.toString()));
+    // Used for each new REDUCE panel:
+    static IODisplayMode ioDisplayMode =
+            IODisplayMode.valueOf(prefs.get(IODISPLAYMODE, IODisplayMode.STYLED.toString()));
+    // Wall-clock and CPU seconds after which a statement is interrupted; 0 means unlimited:
+    static int statementTimeout = Math.max(prefs.getInt(STATEMENTTIMEOUT, 0), 0);
+    static int statementCPUTimeout = Math.max(prefs.getInt(STATEMENTCPUTIMEOUT, 0), 0);
+    // Whether to replay cached results of repeated statements, and the maximum size of the cache in MB:
+    static boolean resultCache = prefs.getBoolean(RESULTCACHE, false);
+    static int resultCacheSize = Math.max(prefs.getInt(RESULTCACHESIZE, 100), 1);
+    // Whether to interrupt the losing engine in a race if it is running a clearly pure statement:
+    static boolean raceCancelLoser = prefs.getBoolean(RACECANCELLOSER, false);
 
     static void save(String key, Object... values) {
         switch (key) {
@@ -71,14 +100,32 @@ class RRPreferences {
                 if (colouredIOIntent != ColouredIO.REDFRONT && colouredIOState != ColouredIO.REDFRONT) {
                     colouredIOState = colouredIOIntent;
                     if (colouredIOState == ColouredIO.NONE) {
-                        REDUCEOutputThread.inputAttributeSet = REDUCEOutputThread.outputAttributeSet = null;
-                        StyleConstants.setForeground(REDUCEOutputThread.promptAttributeSet, null);
+                        REDUCEOutputReader.inputAttributeSet = REDUCEOutputReader.outputAttributeSet = null;
+                        StyleConstants.setForeground(REDUCEOutputReader.promptAttributeSet, null);
                     }
                 }
                 break;
             case DISPLAYPANE:
                 prefs.put(DISPLAYPANE, (displayPane = (DisplayPane) values[0]).toString());
                 break;
+            case SCROLLBACKLIMIT:
+                prefs.putInt(SCROLLBACKLIMIT, scrollbackLimit = (int) values[0]);
+                prefs.put(SCROLLBACKUNIT, (scrollbackUnit = (ScrollbackUnit) values[1]).toString());
+                break;
+            case IODISPLAYMODE:
+                prefs.put(IODISPLAYMODE, (ioDisplayMode = (IODisplayMode) values[0]).toString());
+                break;
+            case STATEMENTTIMEOUT:
+                prefs.putInt(STATEMENTTIMEOUT, statementTimeout = (int) values[0]);
+                prefs.putInt(STATEMENTCPUTIMEOUT, statementCPUTimeout = (int) values[1]);
+                break;
+            case RESULTCACHE:
+                prefs.putBoolean(RESULTCACHE, resultCache = (boolean) values[0]);
+                prefs.putInt(RESULTCACHESIZE, resultCacheSize = (int) values[1]);
+                break;
+            case RACECANCELLOSER:
+                prefs.putBoolean(RACECANCELLOSER, raceCancelLoser);
+                break;
             default:
                 System.err.println("Attempt to save unexpected preference key: " + key);
         }
@@ -92,6 +139,11 @@ class REDUCECommand {
     String version = ""; // e.g. "CSL REDUCE" or "PSL REDUCE"
     String versionRootDir = ""; // version-specific reduceRootDir.
     String[] command = {"", "", "", "", "", ""}; // executable pathname followed by arguments
+    String encoding = StandardCharsets.UTF_8.name(); // of REDUCE input and output
+    int poolSize; // number of idle REDUCE processes to keep started, or 0 for none
+    int poolMemoryCap; // maximum total resident memory of idle processes in MB, or 0 for no cap
+    String warmUpScript = ""; // input sent to each pooled process before it becomes idle
+    String imageScript = ""; // input run before saving a session image, or empty for none
 
     REDUCECommand() {
     }
@@ -122,6 +174,20 @@ class REDUCECommand {
         }
         return command;
     }
+
+    /**
+     * Return the charset for encoding, or null after reporting an error if it is not supported.
+     */
+    Charset getCharset() {
+        try {
+            return Charset.forName(encoding);
+        } catch (IllegalArgumentException exc) {
+            RunREDUCE.errorMessageDialog(
+                    "The encoding '" + encoding + "' of " + version + " is not supported!",
+                    "REDUCE Configuration Error");
+            return null;
+        }
+    }
 }
 
 /**
@@ -130,8 +196,15 @@ class REDUCECommand {
 class REDUCECommandList extends ArrayList<REDUCECommand> {
     REDUCECommandList copy() {
         REDUCECommandList reduceCommandList = new REDUCECommandList();
-        for (REDUCECommand cmd : this) // Build a deep copy of cmd
-            reduceCommandList.add(new REDUCECommand(cmd.version, cmd.versionRootDir, cmd.command));
+        for (REDUCECommand cmd : this) { // Build a deep copy of cmd
+            REDUCECommand copy = new REDUCECommand(cmd.version, cmd.versionRootDir, cmd.command);
+            copy.encoding = cmd.encoding;
+            copy.poolSize = cmd.poolSize;
+            copy.poolMemoryCap = cmd.poolMemoryCap;
+            copy.warmUpScript = cmd.warmUpScript;
+            copy.imageScript = cmd.imageScript;
+            reduceCommandList.add(copy);
+        }
         return reduceCommandList;
     }
 }
@@ -216,6 +289,11 @@ class REDUCEConfiguration extends REDUCEConfigurationType {
     static final String COMMAND_LENGTH = "commandLength";
     static final String COMMAND = "command";
     static final String ARG = "arg";
+    static final String ENCODING = "encoding";
+    static final String POOL_SIZE = "poolSize";
+    static final String POOL_MEMORY_CAP = "poolMemoryCap";
+    static final String WARM_UP_SCRIPT = "warmUpScript";
+    static final String IMAGE_SCRIPT = "imageScript";
 
     /**
      * This method initialises the reduceRootDir, packagesRootDir and runREDUCECommands fields from saved preferences
@@ -254,7 +332,13 @@ class REDUCEConfiguration extends REDUCEConfigurationType {
                                     i < cmdDefault.command.length ? cmdDefault.command[i] : "");
                         }
                     }
-                    reduceCommandList.add(new REDUCECommand(version, versionRootDir, command));
+                    REDUCECommand cmd = new REDUCECommand(version, versionRootDir, command);
+                    cmd.encoding = prefs.get(ENCODING, cmdDefault.encoding);
+                    cmd.poolSize = prefs.getInt(POOL_SIZE, cmdDefault.poolSize);
+                    cmd.poolMemoryCap = prefs.getInt(POOL_MEMORY_CAP, cmdDefault.poolMemoryCap);
+                    cmd.warmUpScript = prefs.get(WARM_UP_SCRIPT, cmdDefault.warmUpScript);
+                    cmd.imageScript = prefs.get(IMAGE_SCRIPT, cmdDefault.imageScript);
+                    reduceCommandList.add(cmd);
                     prefs = prefs.parent();
                 }
             } else
@@ -286,6 +370,11 @@ class REDUCEConfiguration extends REDUCEConfigurationType {
             prefs.put(COMMAND, commandLength > 0 ? cmd.command[0] : "");
             for (int i = 1; i < cmd.command.length; i++)
                 prefs.put(ARG + i, cmd.command[i]);
+            prefs.put(ENCODING, cmd.encoding);
+            prefs.putInt(POOL_SIZE, cmd.poolSize);
+            prefs.putInt(POOL_MEMORY_CAP, cmd.poolMemoryCap);
+            prefs.put(WARM_UP_SCRIPT, cmd.warmUpScript);
+            prefs.put(IMAGE_SCRIPT, cmd.imageScript);
             prefs = prefs.parent();
         }
     }
@@ -0,0 +1,54 @@
+package fjwright.runreduce;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the pipe I/O tasks of all REDUCE sessions on one shared pool of daemon threads.
+ * The pipes to a sub-process are not selectable channels, so each active read or write needs a thread,
+ * but a blocked task uses no CPU and the pool threads have small stacks,
+ * so idle sessions cost only memory and no wake-ups, however many tabs are open.
+ * Threads are reused as sessions end and start, and idle threads expire.
+ */
+class REDUCEIOScheduler {
+    private static final long STACK_SIZE = 256L << 10; // plenty for a read or write loop
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(null, runnable,
+                        "REDUCE I/O " + threadNumber.incrementAndGet(), STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private REDUCEIOScheduler() {
+    }
+
+    /**
+     * Run the specified task on a pool thread, which is named after the task while it runs.
+     */
+    static void execute(String name, Runnable task) {
+        executor.execute(() -> {
+            Thread thread = Thread.currentThread();
+            String poolName = thread.getName();
+            thread.setName(name);
+            try {
+                task.run();
+            } finally {
+                thread.setName(poolName);
+            }
+        });
+    }
+
+    /**
+     * Return the number of pool threads currently running tasks.
+     */
+    static int getActiveCount() {
+        return executor.getActiveCount();
+    }
+}
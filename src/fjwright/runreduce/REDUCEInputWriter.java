@@ -0,0 +1,123 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.function.LongConsumer;
+
+/**
+ * This class provides a task, run by the REDUCE I/O scheduler, that writes input to the REDUCE input pipe
+ * from a bounded queue, so that the event-dispatching thread never blocks when the pipe is full,
+ * e.g. because REDUCE is busy or the input is large.
+ * The task waits without waking while there is no input and ends when it is closed
+ * because the REDUCE output has ended, or when the pipe breaks.
+ */
+class REDUCEInputWriter implements Runnable {
+    static final long MAX_QUEUED_CHARS = 64L << 20;
+    private static final int CHUNK_LENGTH = 8192;
+
+    private final Writer writer;
+    private final LongConsumer queuedCharsListener; // called on the EDT
+
+    // Guarded by this:
+    private final ArrayDeque<String> queue = new ArrayDeque<>();
+    private long queuedChars;
+    private int cancelCount;
+    private boolean closed;
+
+    /**
+     * @param queuedCharsListener called on the event-dispatching thread with the number of characters
+     *                            still queued whenever that number changes.
+     */
+    REDUCEInputWriter(OutputStream output, Charset charset, LongConsumer queuedCharsListener) {
+        writer = new OutputStreamWriter(output, charset);
+        this.queuedCharsListener = queuedCharsListener;
+    }
+
+    /**
+     * Return true if there is room in the queue for the specified number of characters.
+     * This method should be called on the event-dispatching thread before offer.
+     */
+    synchronized boolean hasRoomFor(int length) {
+        return queuedChars + length <= MAX_QUEUED_CHARS;
+    }
+
+    /**
+     * Queue the specified text to be written to REDUCE.
+     * This method must be called on the event-dispatching thread.
+     */
+    void offer(String text) {
+        if (text.isEmpty()) return;
+        long chars;
+        synchronized (this) {
+            queue.add(text);
+            chars = queuedChars += text.length();
+            notifyAll();
+        }
+        queuedCharsListener.accept(chars);
+    }
+
+    /**
+     * Discard all queued input that has not yet been written to REDUCE,
+     * which may leave REDUCE with a partial line of input.
+     * This method must be called on the event-dispatching thread.
+     */
+    void cancel() {
+        synchronized (this) {
+            queue.clear();
+            queuedChars = 0;
+            cancelCount++;
+        }
+        queuedCharsListener.accept(0);
+    }
+
+    /**
+     * End the task once it is idle, because REDUCE has ended.
+     * This method may be called on any thread.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public void run() {
+        try (Writer writer = this.writer) { // closing the pipe tells REDUCE that input has ended
+            for (; ; ) {
+                String text;
+                int count;
+                synchronized (this) {
+                    while (queue.isEmpty()) {
+                        if (closed) return;
+                        wait();
+                    }
+                    text = queue.peek();
+                    count = cancelCount;
+                }
+                // Write the text in chunks so that cancellation and progress take effect promptly:
+                for (int start = 0, end; start < text.length(); start = end) {
+                    end = Math.min(start + CHUNK_LENGTH, text.length());
+                    writer.write(text, start, end - start);
+                    writer.flush();
+                    long chars;
+                    synchronized (this) {
+                        if (count != cancelCount) break;
+                        chars = queuedChars -= end - start;
+                    }
+                    SwingUtilities.invokeLater(() -> queuedCharsListener.accept(chars));
+                }
+                synchronized (this) {
+                    if (count == cancelCount) queue.remove();
+                }
+            }
+        } catch (IOException exc) {
+            // REDUCE has ended, so discard any queued input:
+            SwingUtilities.invokeLater(this::cancel);
+        } catch (InterruptedException exc) {
+            exc.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import javax.swing.text.AttributeSet;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * This class stages styled runs of REDUCE output for the GUI I/O display.
+ * The REDUCE output reader appends runs of text and the event-dispatching thread drains them,
+ * at most once per frame, using one insertion per run of text with the same style
+ * and one caret update per batch.
+ * So the output reader never touches the I/O display.
+ * It also carries whether the output ends with a question prompt,
+ * which is published on the event-dispatching thread when the output is displayed.
+ * <p>
+ * If the I/O display falls too far behind REDUCE then the queue switches to fast-forward mode,
+ * in which each drain displays only the newest screenful of text without styling
+ * and adds the rest directly to the session log, until the flood of output ends.
+ * A full queue blocks the REDUCE output reader, and hence REDUCE, until it has been drained.
+ * <p>
+ * The queue can also pass the styled runs appended to it to a result cache capture.
+ */
+class REDUCEOutputQueue {
+    private static final int FRAME_MILLIS = 16; // approximately 60 frames per second
+    private static final int MAX_PENDING_LENGTH = 1 << 23; // characters
+    // Enter fast-forward mode if the oldest pending text has waited this long to be displayed:
+    private static final long FAST_FORWARD_LAG_MILLIS = 500;
+    // Leave fast-forward mode if there has been no output for this long:
+    private static final int CATCH_UP_MILLIS = 250;
+    // The newest screenful of text displayed in fast-forward mode:
+    private static final int SCREENFUL_LINES = 100;
+    private static final int SCREENFUL_LENGTH = 16384;
+
+    private final IODisplay outputDisplay;
+    private final Consumer<Boolean> fastForwardListener; // called on the EDT
+
+    // Pending text and the end offsets and attributes of its style runs, all guarded by this:
+    private StringBuilder text = new StringBuilder();
+    private int[] runEnds = new int[16];
+    private AttributeSet[] runAttributes = new AttributeSet[16];
+    private int runCount;
+    private boolean drainScheduled;
+    private boolean pendingQuestionPrompt;
+    private long pendingSince; // System.nanoTime() when text was queued after a drain
+    private REDUCEResultCache.Capture capture;
+
+    // Spare buffers swapped with the pending buffers on each drain to avoid reallocation (EDT only):
+    private StringBuilder drainText = new StringBuilder();
+    private int[] drainRunEnds = new int[16];
+    private AttributeSet[] drainRunAttributes = new AttributeSet[16];
+    private long lastDrainTime;
+    private final Timer drainTimer;
+    private boolean questionPrompt; // as displayed
+    boolean fastForwardEnabled = true;
+    private boolean fastForward;
+    private final Timer catchUpTimer;
+
+    REDUCEOutputQueue(IODisplay outputDisplay) {
+        this(outputDisplay, fastForward -> {
+        });
+    }
+
+    /**
+     * @param fastForwardListener called on the event-dispatching thread with true
+     *                            when the queue enters fast-forward mode and false when it leaves.
+     */
+    REDUCEOutputQueue(IODisplay outputDisplay, Consumer<Boolean> fastForwardListener) {
+        this.outputDisplay = outputDisplay;
+        this.fastForwardListener = fastForwardListener;
+        drainTimer = new Timer(FRAME_MILLIS, e -> drain());
+        drainTimer.setRepeats(false);
+        catchUpTimer = new Timer(CATCH_UP_MILLIS, e -> setFastForward(false));
+        catchUpTimer.setRepeats(false);
+    }
+
+    /**
+     * Append the specified text with the specified attributes (which may be null) to the queue.
+     * This method may be called from any thread.
+     */
+    void append(CharSequence s, AttributeSet attributes) {
+        append(s, 0, s.length(), attributes);
+    }
+
+    /**
+     * Append the characters start (inclusive) to end (exclusive) of the specified text
+     * with the specified attributes (which may be null) to the queue.
+     * This method may be called from any thread.
+     */
+    synchronized void append(CharSequence s, int start, int end, AttributeSet attributes) {
+        if (start >= end) return;
+        awaitRoom();
+        text.append(s, start, end);
+        endRun(attributes);
+        if (capture != null && capture.add(s, start, end, attributes)) capture = null;
+    }
+
+    /**
+     * Append length characters of the specified array starting at offset
+     * with the specified attributes (which may be null) to the queue.
+     * This method may be called from any thread.
+     */
+    synchronized void append(char[] chars, int offset, int length, AttributeSet attributes) {
+        if (length <= 0) return;
+        awaitRoom();
+        text.append(chars, offset, length);
+        endRun(attributes);
+        if (capture != null && capture.add(CharBuffer.wrap(chars, offset, length), 0, length, attributes))
+            capture = null;
+    }
+
+    /**
+     * Pass all text appended from now on to the specified capture until it has ended,
+     * replacing any current capture, or stop capturing if it is null.
+     * This method may be called from any thread.
+     */
+    synchronized void capture(REDUCEResultCache.Capture capture) {
+        if (this.capture != null) this.capture.cancel();
+        this.capture = capture;
+    }
+
+    /**
+     * Record whether the text queued so far ends with a question prompt.
+     * If that text has already been drained then schedule another drain to publish the record.
+     * This method may be called from any thread.
+     */
+    synchronized void setQuestionPrompt(boolean questionPrompt) {
+        pendingQuestionPrompt = questionPrompt;
+        if (runCount == 0 && !drainScheduled && !SwingUtilities.isEventDispatchThread()) {
+            drainScheduled = true;
+            SwingUtilities.invokeLater(this::scheduleDrain);
+        }
+    }
+
+    /**
+     * Return true if the displayed text ends with a question prompt, e.g. from YESP,
+     * in which case input should not be auto-terminated.
+     * This method must be called on the event-dispatching thread.
+     */
+    boolean isQuestionPrompt() {
+        return questionPrompt;
+    }
+
+    /**
+     * Wait until the pending text has been drained if it is too long, unless on the EDT, which drains it.
+     */
+    private void awaitRoom() {
+        while (text.length() >= MAX_PENDING_LENGTH && !SwingUtilities.isEventDispatchThread()) {
+            try {
+                wait();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void endRun(AttributeSet attributes) {
+        // Extend the last run if it has the same attributes, otherwise start a new run:
+        if (runCount > 0 && runAttributes[runCount - 1] == attributes) {
+            runEnds[runCount - 1] = text.length();
+        } else {
+            if (runCount == 0) pendingSince = System.nanoTime();
+            if (runCount == runEnds.length) {
+                runEnds = Arrays.copyOf(runEnds, 2 * runCount);
+                runAttributes = Arrays.copyOf(runAttributes, 2 * runCount);
+            }
+            runEnds[runCount] = text.length();
+            runAttributes[runCount++] = attributes;
+        }
+        if (!drainScheduled) {
+            drainScheduled = true;
+            SwingUtilities.invokeLater(this::scheduleDrain);
+        }
+    }
+
+    /**
+     * Drain the queue now if a frame has elapsed since the last drain, otherwise when it has.
+     */
+    private void scheduleDrain() {
+        long wait = lastDrainTime + FRAME_MILLIS - System.currentTimeMillis();
+        if (wait > 0) {
+            drainTimer.setInitialDelay((int) wait);
+            drainTimer.restart();
+        } else drain();
+    }
+
+    /**
+     * Insert all pending text into the I/O display and make the end visible.
+     * This method must be called on the event-dispatching thread.
+     */
+    void drain() {
+        int count;
+        long lagMillis;
+        synchronized (this) {
+            drainScheduled = false;
+            questionPrompt = pendingQuestionPrompt; // even if its text was drained before it was recorded
+            count = runCount;
+            if (count == 0) return;
+            lagMillis = (System.nanoTime() - pendingSince) / 1_000_000;
+            // Swap the pending and spare buffers:
+            StringBuilder sb = text;
+            text = drainText;
+            drainText = sb;
+            int[] ends = runEnds;
+            runEnds = drainRunEnds;
+            drainRunEnds = ends;
+            AttributeSet[] attributes = runAttributes;
+            runAttributes = drainRunAttributes;
+            drainRunAttributes = attributes;
+            runCount = 0;
+            notifyAll(); // there is now room for more text
+        }
+        lastDrainTime = System.currentTimeMillis();
+        drainTimer.stop();
+        int screenfulStart = screenfulStart();
+        if (!fastForward && fastForwardEnabled && lagMillis > FAST_FORWARD_LAG_MILLIS && screenfulStart > 0)
+            setFastForward(true);
+        else if (fastForward && (!fastForwardEnabled || screenfulStart == 0))
+            setFastForward(false);
+        if (fastForward) {
+            outputDisplay.skip(drainText, 0, screenfulStart);
+            outputDisplay.append(drainText, screenfulStart, drainText.length(), null);
+            Arrays.fill(drainRunAttributes, 0, count, null); // release references
+            catchUpTimer.restart();
+        } else {
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                int end = drainRunEnds[i];
+                outputDisplay.append(drainText, start, end, drainRunAttributes[i]);
+                drainRunAttributes[i] = null; // release reference
+                start = end;
+            }
+        }
+        drainText.setLength(0);
+        outputDisplay.appendDone();
+    }
+
+    /**
+     * Return the start of the newest screenful of the text being drained.
+     */
+    private int screenfulStart() {
+        int i = drainText.length(), limit = Math.max(i - SCREENFUL_LENGTH, 0);
+        for (int lines = 0; i > limit; i--)
+            if (drainText.charAt(i - 1) == '\n' && ++lines > SCREENFUL_LINES) break;
+        return i;
+    }
+
+    private void setFastForward(boolean fastForward) {
+        if (this.fastForward == fastForward) return;
+        this.fastForward = fastForward;
+        if (!fastForward) catchUpTimer.stop();
+        fastForwardListener.accept(fastForward);
+    }
+}
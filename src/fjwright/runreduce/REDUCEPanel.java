@@ -1,20 +1,27 @@
 package fjwright.runreduce;
 
 import javax.swing.*;
-import javax.swing.text.BadLocationException;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseListener;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /*
  * This class provides the panel that displays REDUCE input and output.
@@ -22,7 +29,8 @@ import java.util.regex.Pattern;
  */
 public class REDUCEPanel extends JPanel {
     JTextArea inputTextArea;
-    JTextPane outputTextPane;
+    final IODisplay outputDisplay;
+    final REDUCEOutputQueue outputQueue;
     final Action sendAction = new SendAction();
     private final Action earlierAction = new EarlierAction();
     private final Action laterAction = new LaterAction();
@@ -31,27 +39,58 @@ public class REDUCEPanel extends JPanel {
     private int maxInputListIndex = 0;
     private static final Pattern pattern =
             Pattern.compile(".*\\b(?:bye|quit)\\s*[;$]?.*", Pattern.CASE_INSENSITIVE);
-    private PrintWriter reduceInputPrintWriter;
+    private REDUCEInputWriter inputWriter;
+    private Process process; // of REDUCE running in this panel until it is known to have ended
+    private boolean reaping; // process is being stopped
+    // All REDUCE processes not yet ended, including idle pooled processes, which are terminated when Run-REDUCE exits:
+    static final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private static final long BYE_TIMEOUT_SECONDS = 10;    // before terminating REDUCE when stopping it
+    private static final long DESTROY_TIMEOUT_SECONDS = 5; // before killing REDUCE when stopping it
+    private static final long OUTPUT_TIMEOUT_SECONDS = 1;  // to finish reading output after REDUCE ends
+    private static final long STARTUP_TIMEOUT_SECONDS = 60; // for the first prompt with redfront
+    private static final long BREAK_TIMEOUT_SECONDS = 10;   // for REDUCE to respond to an interrupt
+    private boolean interrupting; // REDUCE has been interrupted but has not yet responded
+    // Statement timeouts are checked every second while statements sent to REDUCE are running:
+    private final Timer statementTimer = new Timer(1000, e -> checkStatementTimeouts());
+    private int statementsPending;     // sent to REDUCE but not yet followed by a prompt
+    private int statementPromptNumber; // when the current statement started
+    private long statementStartNanos, statementStartCPUNanos;
+    PromptDetector promptDetector = new PromptDetector(); // of the current REDUCE session
     MenuItemStatus menuItemStatus = new MenuItemStatus();
     boolean runningREDUCE;
     String title; // REDUCE version if REDUCE is running
     JLabel outputLabel, inputLabel;
+    private long queuedInputChars;
+    private boolean fastForward;
+    private REDUCETelemetry.Sample telemetry; // latest sample of the running REDUCE process, or null
+    private int measuredStatements;           // sent to REDUCE but not yet followed by a prompt
+    private long lastStatementCPUNanos = -1;  // CPU time of the latest statement to finish, or -1
+    private String raceSummary;               // of REDUCE engines racing in this panel, or null
+    private REDUCEResultCache.Context cacheContext; // of the REDUCE session for the result cache, or null
     static final String outputLabelDefault = "Input/Output Display";
     static Color deselectedBackground = new Color(0xF8_F8_F8);
 
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Process p : processes) {
+                p.descendants().forEach(ProcessHandle::destroy);
+                p.destroy();
+            }
+        }, "REDUCE process terminator"));
+    }
+
     public REDUCEPanel() {
         super(new BorderLayout()); // JPanel defaults to FlowLayout!
 
-        // Create the non-editable vertically-scrollable output text area:
-        outputTextPane = new JTextPane();
-        outputTextPane.setFont(RunREDUCE.reduceFont);
-        outputTextPane.setEditable(false);
-        JScrollPane outputScrollPane = new JScrollPane(outputTextPane);
+        // Create the non-editable scrollable output display:
+        outputDisplay = RRPreferences.ioDisplayMode == RRPreferences.IODisplayMode.VIRTUAL ?
+                new TranscriptIODisplay() : new StyledIODisplay();
+        outputQueue = new REDUCEOutputQueue(outputDisplay, this::showFastForward);
         JPanel outputPane = new JPanel(new BorderLayout(0, 3));
         outputPane.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         outputLabel = new JLabel(outputLabelDefault);
         outputPane.add(outputLabel, BorderLayout.PAGE_START);
-        outputPane.add(outputScrollPane);
+        outputPane.add(outputDisplay.getComponent());
 
         // Create the editable vertically-scrollable input text area:
         inputTextArea = new JTextArea();
@@ -138,19 +177,7 @@ public class REDUCEPanel extends JPanel {
             String text = inputTextArea.getText();
             if (text.length() > 0) {
                 inputList.add(text);
-                boolean questionPrompt = false;
-                try {
-                    StyledDocument styledDoc = outputTextPane.getStyledDocument();
-                    // The last paragraph element should be the prompt line.
-                    int start = styledDoc.getParagraphElement(styledDoc.getLength()).getStartOffset();
-                    for (int i = styledDoc.getLength() - 1; i >= start; i--)
-                        if (styledDoc.getText(i, 1).equals("?")) {
-                            questionPrompt = true;
-                            break;
-                        }
-                } catch (BadLocationException ex) {
-                    ex.printStackTrace();
-                }
+                boolean questionPrompt = outputQueue.isQuestionPrompt();
                 boolean unshifted = (e.getModifiers() & ActionEvent.SHIFT_MASK) == 0;
                 // if shifted then do not auto terminate, hence if unshifted then auto terminate:
                 sendInteractiveInputToREDUCE(text, !questionPrompt && unshifted);
@@ -223,51 +250,477 @@ public class REDUCEPanel extends JPanel {
         text = text.substring(0, i + 1);
         if (c == ';' || c == '$' || !autoTerminate) text += "\n";
         else text += ";\n";
-        sendStringToREDUCEAndEcho(text);
+        String cacheKey = resultCacheKey(text);
+        if (cacheKey != null && replayCachedResult(text, cacheKey)) return;
+        sendStringToREDUCEAndEcho(text, cacheKey);
     }
 
     void sendStringToREDUCEAndEcho(String text) {
-        StyledDocument styledDoc = outputTextPane.getStyledDocument();
-        try {
-            styledDoc.insertString(styledDoc.getLength(), text, REDUCEOutputThread.inputAttributeSet);
-        } catch (BadLocationException exc) {
-            exc.printStackTrace();
-        }
-        // Make sure the new input text is visible, even if there was
-        // a selection in the output text area:
-        outputTextPane.setCaretPosition(styledDoc.getLength());
+        sendStringToREDUCEAndEcho(text, null);
+    }
+
+    /**
+     * Send the specified text to REDUCE and echo it,
+     * and if the cache key is not null then capture its output for the result cache.
+     */
+    private void sendStringToREDUCEAndEcho(String text, String cacheKey) {
+        if (!inputQueueHasRoomFor(text)) return;
+        // Queue the input text after any pending output and display it immediately.
+        // Draining the queue also makes sure the new input text is visible,
+        // even if there was a selection in the output text area:
+        outputQueue.append(text, REDUCEOutputReader.inputAttributeSet);
+        outputQueue.setQuestionPrompt(false); // the input completes any prompt line
+        outputQueue.drain();
+        if (cacheKey != null) captureResult(cacheKey);
         sendStringToREDUCENoEcho(text);
     }
 
     void sendStringToREDUCENoEcho(String text) {
-        // Send the input to the REDUCE input pipe:
-        if (reduceInputPrintWriter != null) {
-            reduceInputPrintWriter.print(text);
-            reduceInputPrintWriter.flush();
+        // Queue the input for the REDUCE input pipe:
+        if (inputWriter != null && inputQueueHasRoomFor(text)) {
+            inputWriter.offer(text);
+            if (cacheContext != null) cacheContext.sent(text);
+            int statements = PromptDetector.countStatements(text);
+            timeStatements(statements);
+            measureStatements(statements);
+        }
+    }
+
+    private boolean inputQueueHasRoomFor(String text) {
+        if (inputWriter == null || inputWriter.hasRoomFor(text.length())) return true;
+        RunREDUCE.errorMessageDialog(
+                "Too much input is waiting to be sent to REDUCE, so this input has been ignored.\n" +
+                        "Wait for REDUCE to read the queued input or cancel it via the REDUCE menu.",
+                "REDUCE Input Queue Full");
+        return false;
+    }
+
+    /**
+     * Return the result cache key of the specified interactive input,
+     * or null if the result cache is disabled or the input is not a single cacheable statement
+     * sent when REDUCE is idle at an algebraic-mode prompt.
+     */
+    private String resultCacheKey(String text) {
+        if (!RRPreferences.resultCache || cacheContext == null || inputWriter == null ||
+                measuredStatements > 0 || !promptDetector.isPrompt() || promptDetector.isQuestionPrompt() ||
+                promptDetector.getMode() != PromptDetector.Mode.ALGEBRAIC) return null;
+        return cacheContext.key(text);
+    }
+
+    /**
+     * Display the specified input followed by its cached result and the current prompt again, marked as cached,
+     * without sending the input to REDUCE, and return true, or return false if the result is not cached.
+     */
+    private boolean replayCachedResult(String text, String cacheKey) {
+        REDUCEResultCache.Result result = REDUCEResultCache.get(cacheKey);
+        if (result == null) return false;
+        outputQueue.append(text, REDUCEOutputReader.inputAttributeSet);
+        outputQueue.setQuestionPrompt(false);
+        for (int i = 0; i < result.runTexts.size(); i++)
+            outputQueue.append(result.runTexts.get(i), result.runAttributes.get(i));
+        outputQueue.append(REDUCEResultCache.CACHED_NOTE, REDUCEResultCache.cachedAttributeSet);
+        outputQueue.append(promptDetector.getPromptNumber() + ": ", result.promptAttributes);
+        outputQueue.drain();
+        return true;
+    }
+
+    /**
+     * Capture the output of the statement about to be sent to REDUCE up to the following prompt
+     * and save it in the result cache if it is worth caching.
+     */
+    private void captureResult(String cacheKey) {
+        int promptNumber = promptDetector.getPromptNumber() + 1;
+        REDUCEResultCache.Capture capture = new REDUCEResultCache.Capture(cacheKey, promptNumber);
+        outputQueue.capture(capture);
+        // REDUCE may instead ask a question, break or skip a prompt number, e.g. after an error:
+        promptDetector.awaitNextInputLine().thenAccept(n -> {
+            if (n != promptNumber || promptDetector.isQuestionPrompt() || promptDetector.isBreakPrompt())
+                capture.cancel();
+        });
+        capture.done.thenAccept(result -> {
+            if (result != null) REDUCEResultCache.put(capture.getKey(), result);
+        });
+    }
+
+    /**
+     * Measure the CPU time of each of the specified number of statements just sent to REDUCE,
+     * from when it is sent, or the previous statement finishes, to the next prompt.
+     */
+    private void measureStatements(int statements) {
+        if (statements == 0) return;
+        boolean idle = measuredStatements == 0;
+        measuredStatements += statements;
+        if (idle) measureNextStatement(process, promptDetector.getPromptNumber());
+    }
+
+    /**
+     * Measure the statement that started at the specified prompt number.
+     */
+    private void measureNextStatement(Process p, int startPromptNumber) {
+        long startCPUNanos = REDUCETelemetry.cpuNanos(p);
+        promptDetector.awaitNextInputLine().thenAcceptAsync(promptNumber -> {
+            if (p != process) return; // REDUCE has since ended
+            if (promptDetector.isQuestionPrompt()) { // the statement continues after the answer
+                promptDetector.awaitNextInputLine().thenRunAsync(() -> measureNextStatement(p, startPromptNumber),
+                        SwingUtilities::invokeLater);
+                return;
+            }
+            lastStatementCPUNanos = REDUCETelemetry.cpuNanos(p) - startCPUNanos;
+            updateOutputLabel();
+            // Several statements may finish at once, e.g. "2: 3: ", so count them as checkStatementTimeouts does:
+            int finished = promptNumber - startPromptNumber;
+            measuredStatements = finished > 0 ? Math.max(measuredStatements - finished, 0) : 0;
+            if (measuredStatements > 0) measureNextStatement(p, promptNumber);
+        }, SwingUtilities::invokeLater);
+    }
+
+    /**
+     * Time the specified number of statements just sent to REDUCE if there are statement timeouts.
+     */
+    private void timeStatements(int statements) {
+        if (statements == 0 || RRPreferences.windowsOS ||
+                (RRPreferences.statementTimeout == 0 && RRPreferences.statementCPUTimeout == 0)) return;
+        statementsPending += statements;
+        if (!statementTimer.isRunning()) {
+            startStatementClock();
+            statementTimer.start();
+        }
+    }
+
+    private void startStatementClock() {
+        statementPromptNumber = promptDetector.getPromptNumber();
+        statementStartNanos = System.nanoTime();
+        statementStartCPUNanos = REDUCETelemetry.cpuNanos(process);
+    }
+
+    /**
+     * Interrupt the statement that REDUCE is running if it has exceeded a statement timeout.
+     * Each new prompt ends a statement and starts the clock for the next one, if any,
+     * and the clock does not run while REDUCE is asking a question.
+     */
+    private void checkStatementTimeouts() {
+        if (process == null) {
+            statementTimer.stop();
+            statementsPending = 0;
+            return;
+        }
+        int promptNumber = promptDetector.getPromptNumber();
+        if (promptNumber != statementPromptNumber) {
+            int finished = promptNumber - statementPromptNumber;
+            statementsPending = finished > 0 ? Math.max(statementsPending - finished, 0) : 0;
+            if (statementsPending == 0) statementTimer.stop();
+            else startStatementClock();
+            return;
+        }
+        if (promptDetector.isQuestionPrompt() || interrupting) {
+            startStatementClock();
+            return;
+        }
+        String limit = null;
+        if (RRPreferences.statementTimeout > 0 &&
+                System.nanoTime() - statementStartNanos >= RRPreferences.statementTimeout * 1_000_000_000L)
+            limit = RRPreferences.statementTimeout + " second wall-clock";
+        else if (RRPreferences.statementCPUTimeout > 0 &&
+                REDUCETelemetry.cpuNanos(process) - statementStartCPUNanos >=
+                        RRPreferences.statementCPUTimeout * 1_000_000_000L)
+            limit = RRPreferences.statementCPUTimeout + " second CPU";
+        if (limit != null) {
+            outputQueue.append("\nRun-REDUCE is interrupting this statement because it has exceeded the " +
+                    limit + " time limit.\n", null);
+            interruptREDUCE(false);
+            startStatementClock();
+        }
+    }
+
+    /**
+     * Interrupt REDUCE as typing Control+C in a terminal would, so that it abandons the current computation
+     * but the session continues, and report if it does not then ask for input.
+     */
+    void breakREDUCE() {
+        interruptREDUCE(true);
+    }
+
+    private void interruptREDUCE(boolean interactive) {
+        Process p = process;
+        if (p == null || interrupting || RRPreferences.windowsOS) return;
+        interrupting = true;
+        CompletableFuture<Integer> responded = promptDetector.awaitNextInputLine();
+        REDUCEIOScheduler.execute("REDUCE interrupter", () -> {
+            String error = sendInterrupt(p);
+            if (error != null) responded.completeExceptionally(new IOException(error));
+        });
+        responded.orTimeout(BREAK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenCompleteAsync((promptNumber, exc) -> {
+                    interrupting = false;
+                    if (exc == null || p != process) return;
+                    String message = exc instanceof TimeoutException ?
+                            "REDUCE did not respond to the interrupt within " + BREAK_TIMEOUT_SECONDS + " seconds." :
+                            "REDUCE could not be interrupted -- " + exc.getMessage();
+                    if (interactive)
+                        RunREDUCE.errorMessageDialog(message + "\nUse Stop REDUCE to end it.", "REDUCE Break Error");
+                    else outputQueue.append("\n" + message + "\n", null);
+                }, SwingUtilities::invokeLater);
+    }
+
+    /**
+     * Send SIGINT to the processes in the tree of the specified process that have no children,
+     * which excludes any script that runs REDUCE, and return null or an error message.
+     */
+    static String sendInterrupt(Process p) {
+        List<String> command = new ArrayList<>(Arrays.asList("kill", "-INT"));
+        Stream.concat(Stream.of(p.toHandle()), p.descendants())
+                .filter(h -> h.children().findAny().isEmpty())
+                .forEach(h -> command.add(Long.toString(h.pid())));
+        try {
+            Process kill = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String output = new String(kill.getInputStream().readAllBytes());
+            return kill.waitFor() == 0 ? null : output.trim();
+        } catch (IOException | InterruptedException exc) {
+            return exc.toString();
+        }
+    }
+
+    /**
+     * Discard any input queued for REDUCE but not yet sent.
+     */
+    void cancelQueuedInput() {
+        if (inputWriter != null) inputWriter.cancel();
+    }
+
+    private void showQueuedInput(long queuedChars) {
+        queuedInputChars = queuedChars;
+        updateOutputLabel();
+    }
+
+    private void showRaceSummary(String summary) {
+        if (!(process instanceof REDUCERace)) return; // the race has since ended
+        raceSummary = summary;
+        updateOutputLabel();
+    }
+
+    private void showFastForward(boolean fastForward) {
+        this.fastForward = fastForward;
+        updateOutputLabel();
+    }
+
+    /**
+     * Show the specified sample of the resource use of the specified REDUCE process
+     * in the output label and the tab header.
+     */
+    void showTelemetry(Process p, REDUCETelemetry.Sample sample) {
+        if (p != process) return; // REDUCE has since ended
+        telemetry = sample;
+        updateOutputLabel();
+        updateTabTitle();
+    }
+
+    /**
+     * Update the output label to show the REDUCE version, its resource use,
+     * the amount of input queued for REDUCE and whether output is being fast-forwarded.
+     */
+    private void updateOutputLabel() {
+        String text = outputLabelDefault;
+        if (title != null) text += "  |  " + title;
+        if (telemetry != null) {
+            text += "  |  CPU " + REDUCETelemetry.formatSeconds(telemetry.cpuNanos);
+            if (telemetry.residentBytes >= 0)
+                text += ", RSS " + REDUCETelemetry.formatMegabytes(telemetry.residentBytes) +
+                        ", page faults " + telemetry.minorFaults + " minor " + telemetry.majorFaults + " major";
+        }
+        if (lastStatementCPUNanos >= 0)
+            text += "  |  last statement CPU " + REDUCETelemetry.formatSeconds(lastStatementCPUNanos);
+        if (raceSummary != null) text += "  |  " + raceSummary;
+        if (queuedInputChars > 0) text += "  |  " + (queuedInputChars + 1023) / 1024 + " KB input queued";
+        if (fastForward) text += "  |  FAST-FORWARDING OUTPUT";
+        outputLabel.setText(text);
+    }
+
+    /**
+     * Start the specified REDUCE command as a sub-process connected to this REDUCE panel
+     * and return the process, without updating the rest of the GUI.
+     */
+    Process start(String[] command, Charset charset) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        // pb.redirectInput(ProcessBuilder.Redirect.INHERIT); // Works!
+        Process p = pb.start();
+        processes.add(p);
+        start(p, p.getInputStream(), charset);
+        return p;
+    }
+
+    /**
+     * Connect the specified running REDUCE process, whose output is read from the specified stream,
+     * to this REDUCE panel.
+     */
+    private void start(Process p, InputStream output, Charset charset) throws IOException {
+        process = p;
+        reaping = false;
+        interrupting = false;
+        statementsPending = 0;
+        measuredStatements = 0;
+        lastStatementCPUNanos = -1;
+        raceSummary = null;
+        telemetry = null;
+        REDUCETelemetry.register(this, p);
+        outputQueue.capture(null);
+        cacheContext = null;
+
+        // Start a task to write queued input to the REDUCE input stream:
+        REDUCEInputWriter inputWriter = this.inputWriter =
+                new REDUCEInputWriter(p.getOutputStream(), charset, this::showQueuedInput);
+        REDUCEIOScheduler.execute("REDUCE input", inputWriter);
+
+        // Start a task to handle the REDUCE output stream, which ends the input task when REDUCE ends:
+        promptDetector = new PromptDetector();
+        REDUCEOutputReader outputGobbler = new
+                REDUCEOutputReader(output, charset, outputQueue, promptDetector);
+        if (RunREDUCE.debugOutput) outputGobbler.tap = RawOutputTap.start(charset);
+        CompletableFuture<Void> outputEnded = new CompletableFuture<>();
+        REDUCEIOScheduler.execute("REDUCE output", () -> {
+            outputGobbler.run();
+            inputWriter.close();
+            outputEnded.complete(null);
+        });
+
+        // Track the real state of the process, however it ends, after reading its final output:
+        p.onExit().thenRun(() -> {
+            processes.remove(p);
+            outputEnded.completeOnTimeout(null, OUTPUT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .thenRun(() -> SwingUtilities.invokeLater(() -> reduceEnded(p)));
+        });
+    }
+
+    /**
+     * Update this panel when the specified REDUCE process has ended.
+     * If REDUCE was not stopped via bye or Stop REDUCE then it crashed or was killed, so report that.
+     */
+    private void reduceEnded(Process p) {
+        if (p != process) return; // REDUCE has since been run again
+        process = null;
+        statementTimer.stop();
+        REDUCETelemetry.unregister(this);
+        telemetry = null;
+        lastStatementCPUNanos = -1;
+        outputQueue.capture(null);
+        cacheContext = null;
+        updateTabTitle();
+        inputWriter.close(); // in case a sub-process still holds the output pipe open
+        inputWriter = null;
+        showQueuedInput(0);
+        if (runningREDUCE) {
+            outputQueue.append("\nREDUCE has ended unexpectedly (exit value " + p.exitValue() + ").\n", null);
+            sendAction.setEnabled(runningREDUCE = false);
+            menuItemStatus.reduceStopped();
+            // Restore the menus of the selected panel if it is not this one:
+            if (RunREDUCE.reducePanel != null && RunREDUCE.reducePanel != this)
+                RunREDUCE.reducePanel.menuItemStatus.updateMenus();
+        }
+    }
+
+    /**
+     * Stop REDUCE running in this panel by discarding any queued input and sending bye.
+     * If REDUCE has not ended within BYE_TIMEOUT_SECONDS then terminate it and any sub-processes,
+     * and if they have not ended within a further DESTROY_TIMEOUT_SECONDS then kill them.
+     */
+    void stopREDUCE() {
+        if (process == null || reaping) return;
+        reaping = true;
+        if (runningREDUCE) {
+            cancelQueuedInput();
+            sendStringToREDUCEAndEcho("bye;\n");
+            sendAction.setEnabled(runningREDUCE = false);
+        }
+        Process p = process;
+        REDUCEIOScheduler.execute("REDUCE reaper", () -> reap(p));
+    }
+
+    private static void reap(Process p) {
+        // REDUCE may be run by a script, so also stop its descendants, which must be found while it is running:
+        List<ProcessHandle> tree = new ArrayList<>();
+        tree.add(p.toHandle());
+        p.descendants().forEach(tree::add);
+        CompletableFuture<?> ended = CompletableFuture.allOf(
+                tree.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new));
+        try {
+            try {
+                ended.get(BYE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                return;
+            } catch (TimeoutException exc) {
+                tree.forEach(ProcessHandle::destroy);
+            }
+            try {
+                ended.get(DESTROY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException exc) {
+                tree.forEach(ProcessHandle::destroyForcibly);
+            }
+        } catch (InterruptedException | ExecutionException exc) {
+            exc.printStackTrace();
         }
     }
 
+    /**
+     * Stop any REDUCE running in this panel and free the resources of its display,
+     * because the panel is being discarded.
+     */
+    void close() {
+        stopREDUCE();
+        outputDisplay.dispose();
+    }
+
     /**
      * Run the specified REDUCE command in this REDUCE panel.
      */
     void run(REDUCECommand reduceCommand) {
         String[] command = reduceCommand.buildCommand();
         if (command == null) return;
+        Charset charset = reduceCommand.getCharset();
+        if (charset == null) return;
         try {
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(true);
-            // pb.redirectInput(ProcessBuilder.Redirect.INHERIT); // Works!
-            Process p = pb.start();
+            // Adopt an idle REDUCE process if one is ready:
+            REDUCEProcessPool.WarmProcess warmProcess = REDUCEProcessPool.adopt(reduceCommand, command, charset);
+            if (warmProcess != null) {
+                start(warmProcess.process, warmProcess.getInputStream(), charset);
+                cacheContext = new REDUCEResultCache.Context(
+                        reduceCommand.version, command, RRPreferences.colouredIOIntent);
+                cacheContext.sent(reduceCommand.warmUpScript);
+            } else {
+                start(command, charset);
+                cacheContext = new REDUCEResultCache.Context(
+                        reduceCommand.version, command, RRPreferences.colouredIOIntent);
+                // Start the session in the same state as one in a pooled process:
+                if (reduceCommand.poolSize > 0 && !reduceCommand.warmUpScript.isEmpty())
+                    sendStringToREDUCENoEcho(reduceCommand.warmUpScript + "\n");
+            }
 
-            // Assign the REDUCE input stream to an instance field:
-            OutputStreamWriter osr = new OutputStreamWriter(p.getOutputStream());
-            reduceInputPrintWriter = new PrintWriter(osr);
+            // Initialise enabled state of menu items etc.:
+            menuItemStatus.reduceStarted();
+        } catch (Exception exc) {
+            RunREDUCE.errorMessageDialog(
+                    "Error running REDUCE -- " + exc,
+                    "REDUCE Process Error");
+        }
+        started(reduceCommand.version);
+    }
 
-            // Start a thread to handle the REDUCE output stream
-            // (assigned to a global variable):
-            REDUCEOutputThread outputGobbler = new
-                    REDUCEOutputThread(p.getInputStream(), outputTextPane);
-            outputGobbler.start();
+    /**
+     * Race the specified versions of REDUCE, normally CSL and PSL REDUCE, in this REDUCE panel,
+     * displaying the output of whichever finishes each statement first.
+     */
+    void race(REDUCECommand reduceCommand1, REDUCECommand reduceCommand2) {
+        String[] command1 = reduceCommand1.buildCommand();
+        if (command1 == null) return;
+        Charset charset1 = reduceCommand1.getCharset();
+        if (charset1 == null) return;
+        String[] command2 = reduceCommand2.buildCommand();
+        if (command2 == null) return;
+        Charset charset2 = reduceCommand2.getCharset();
+        if (charset2 == null) return;
+        try {
+            REDUCERace race = new REDUCERace(reduceCommand1.version, command1, charset1,
+                    reduceCommand2.version, command2, charset2,
+                    summary -> SwingUtilities.invokeLater(() -> showRaceSummary(summary)));
+            start(race, race.getInputStream(), charset1);
 
             // Initialise enabled state of menu items etc.:
             menuItemStatus.reduceStarted();
@@ -276,49 +729,71 @@ public class REDUCEPanel extends JPanel {
                     "Error running REDUCE -- " + exc,
                     "REDUCE Process Error");
         }
+        started(reduceCommand1.version + " vs " + reduceCommand2.version);
+    }
 
-        title = reduceCommand.version;
-        outputLabel.setText(outputLabelDefault + "  |  " + title);
-        if (RRPreferences.displayPane == RRPreferences.DisplayPane.TABBED) {
-            int tabIndex = RunREDUCE.tabbedPane.indexOfComponent(this);
-            RunREDUCE.tabbedPane.setTitleAt(tabIndex, title);
-            RunREDUCE.tabbedPane.getTabComponentAt(tabIndex).invalidate();
-        }
+    /**
+     * Update the rest of this panel when REDUCE, titled as specified, has just been started.
+     */
+    private void started(String title) {
+        this.title = title;
+        updateOutputLabel();
+        updateTabTitle();
 
-        sendAction.setEnabled(runningREDUCE = true);
+        runningREDUCE = true;
 
         // Special support for Redfront I/O colouring:
         RRPreferences.colouredIOState = RRPreferences.colouredIOIntent;
         if (RRPreferences.colouredIOState == RRPreferences.ColouredIO.REDFRONT) {
-            // Tidy up the initial prompt. Waiting for it is NECESSARY:
-            StyledDocument styledDoc = outputTextPane.getStyledDocument();
-            try {
-                // This typically sleeps a couple of times.
-                while (!(styledDoc.getLength() >= 3 &&
-                        styledDoc.getText(styledDoc.getLength() - 3, 3).equals("1: "))) {
-//                System.err.println("Waiting...");
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                styledDoc.remove(styledDoc.getLength() - 4, 4);
-            } catch (BadLocationException e) {
-                e.printStackTrace();
-            }
-            sendStringToREDUCENoEcho("load_package redfront;\n");
+            // Tidy up the initial prompt and load redfront once REDUCE has output it. Waiting for it is NECESSARY,
+            // but is asynchronous so that a slow start does not block the GUI, and input is disabled until then.
+            Process p = process;
+            promptDetector.awaitPrompt()
+                    .orTimeout(STARTUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .whenCompleteAsync((promptNumber, exc) -> {
+                        if (p != process) return; // REDUCE has since ended
+                        if (exc == null) {
+                            // The output queue must be drained explicitly to display the prompt now:
+                            outputQueue.drain();
+                            if (outputDisplay.endsWith("1: ")) outputDisplay.removeTail(4);
+                            sendStringToREDUCENoEcho("load_package redfront;\n");
+                        } else if (exc instanceof TimeoutException)
+                            RunREDUCE.errorMessageDialog(
+                                    "REDUCE did not prompt for input within " + STARTUP_TIMEOUT_SECONDS +
+                                            " seconds of starting, so redfront I/O colouring is not available.",
+                                    "REDUCE Start-up Error");
+                        sendAction.setEnabled(runningREDUCE);
+                    }, SwingUtilities::invokeLater);
+        } else
+            sendAction.setEnabled(true);
+    }
+
+    /**
+     * Update the tab header of this panel, if it is in a tab, to show the REDUCE version and its resource use.
+     */
+    private void updateTabTitle() {
+        if (RRPreferences.displayPane != RRPreferences.DisplayPane.TABBED || title == null) return;
+        int tabIndex = RunREDUCE.tabbedPane.indexOfComponent(this);
+        if (tabIndex < 0) return;
+        String tabTitle = title;
+        if (telemetry != null) {
+            tabTitle += " (" + REDUCETelemetry.formatSeconds(telemetry.cpuNanos);
+            if (telemetry.residentBytes >= 0)
+                tabTitle += ", " + REDUCETelemetry.formatMegabytes(telemetry.residentBytes);
+            tabTitle += ")";
         }
+        RunREDUCE.tabbedPane.setTitleAt(tabIndex, tabTitle);
+        RunREDUCE.tabbedPane.getTabComponentAt(tabIndex).invalidate();
     }
 
     void setSelected(boolean selected) {
         if (selected) {
-            outputTextPane.setBackground(Color.white);
+            outputDisplay.setBackground(Color.white);
             inputTextArea.setBackground(Color.white);
             outputLabel.setEnabled(true);
             inputLabel.setEnabled(true);
         } else {
-            outputTextPane.setBackground(deselectedBackground);
+            outputDisplay.setBackground(deselectedBackground);
             inputTextArea.setBackground(deselectedBackground);
             outputLabel.setEnabled(false);
             inputLabel.setEnabled(false);
@@ -365,6 +840,9 @@ class MenuItemStatus {
     boolean outputFileMenuItem;
     boolean loadPackagesMenuItem;
     boolean stopREDUCEMenuItem;
+    boolean cancelInputMenuItem;
+    boolean breakREDUCEMenuItem;
+    boolean fastForwardCheckBox = true; // selection state, not enabled status
     boolean runREDUCESubmenu;
     boolean outputHereMenuItem;
     boolean shutFileMenuItem;
@@ -397,6 +875,8 @@ class MenuItemStatus {
         RRMenuBar.outputFileMenuItem.setEnabled(outputFileMenuItem = starting);
         RRMenuBar.loadPackagesMenuItem.setEnabled(loadPackagesMenuItem = starting);
         RRMenuBar.stopREDUCEMenuItem.setEnabled(stopREDUCEMenuItem = starting);
+        RRMenuBar.cancelInputMenuItem.setEnabled(cancelInputMenuItem = starting);
+        RRMenuBar.breakREDUCEMenuItem.setEnabled(breakREDUCEMenuItem = starting && !RRPreferences.windowsOS);
 
         // Items to disable/enable when REDUCE starts/stops running:
         RRMenuBar.runREDUCESubmenu.setEnabled(runREDUCESubmenu = !starting);
@@ -415,6 +895,9 @@ class MenuItemStatus {
         RRMenuBar.outputFileMenuItem.setEnabled(outputFileMenuItem);
         RRMenuBar.loadPackagesMenuItem.setEnabled(loadPackagesMenuItem);
         RRMenuBar.stopREDUCEMenuItem.setEnabled(stopREDUCEMenuItem);
+        RRMenuBar.cancelInputMenuItem.setEnabled(cancelInputMenuItem);
+        RRMenuBar.breakREDUCEMenuItem.setEnabled(breakREDUCEMenuItem);
+        RRMenuBar.fastForwardCheckBox.setState(fastForwardCheckBox);
         RRMenuBar.runREDUCESubmenu.setEnabled(runREDUCESubmenu);
         RRMenuBar.outputHereMenuItem.setEnabled(outputHereMenuItem);
         RRMenuBar.shutFileMenuItem.setEnabled(shutFileMenuItem);
@@ -423,12 +906,15 @@ class MenuItemStatus {
 }
 
 /**
- * This thread reads from the REDUCE output pipe and appends it to the GUI output pane.
+ * This task, run by the REDUCE I/O scheduler, reads from the REDUCE output pipe
+ * and appends it to the GUI output pane via its output queue.
  */
-class REDUCEOutputThread extends Thread {
-    InputStream input;        // REDUCE pipe output (buffered)
-    JTextPane outputTextPane; // GUI output pane
-    private final StyledDocument styledDoc;
+class REDUCEOutputReader implements Runnable {
+    InputStream input;               // REDUCE pipe output
+    Charset charset;                 // of REDUCE pipe output
+    REDUCEOutputQueue outputQueue;   // GUI output pane staging queue
+    PromptDetector promptDetector;   // REDUCE session prompt state
+    RawOutputTap tap;                // records raw output if not null
     static final SimpleAttributeSet algebraicPromptAttributeSet = new SimpleAttributeSet();
     static final SimpleAttributeSet symbolicPromptAttributeSet = new SimpleAttributeSet();
     static final SimpleAttributeSet algebraicOutputAttributeSet = new SimpleAttributeSet();
@@ -438,18 +924,25 @@ class REDUCEOutputThread extends Thread {
     static SimpleAttributeSet promptAttributeSet = new SimpleAttributeSet();
     static SimpleAttributeSet inputAttributeSet;
     static SimpleAttributeSet outputAttributeSet;
-    private static final Pattern promptPattern = Pattern.compile("\\d+([:*]) ");
     private final StringBuilder text = new StringBuilder(); // Must not be static!
+    private final byte[] byteBuffer = new byte[8192]; // reused for every read
+    private final char[] buffer = new char[8192]; // reused for every read after decoding
+    private final RedfrontParser redfrontParser;
+    // Flush long output in pieces of about this size even if more is already available:
+    private static final int MAX_TEXT_LENGTH = 65536;
 
     private static final Color ALGEBRAICOUTPUTCOLOR = Color.blue;
     private static final Color SYMBOLICOUTPUTCOLOR = new Color(0x80_00_80);
     private static final Color ALGEBRAICINPUTCOLOR = Color.red;
     private static final Color SYMBOLICINPUTCOLOR = new Color(0x80_00_00);
 
-    REDUCEOutputThread(InputStream input, JTextPane outputTextPane) {
+    REDUCEOutputReader(InputStream input, Charset charset,
+                       REDUCEOutputQueue outputQueue, PromptDetector promptDetector) {
         this.input = input;
-        this.outputTextPane = outputTextPane;
-        styledDoc = outputTextPane.getStyledDocument();
+        this.charset = charset;
+        this.outputQueue = outputQueue;
+        this.promptDetector = promptDetector;
+        redfrontParser = new RedfrontParser(outputQueue);
         StyleConstants.setForeground(algebraicOutputAttributeSet, ALGEBRAICOUTPUTCOLOR);
         StyleConstants.setForeground(symbolicOutputAttributeSet, SYMBOLICOUTPUTCOLOR);
         StyleConstants.setForeground(algebraicInputAttributeSet, ALGEBRAICINPUTCOLOR);
@@ -468,138 +961,122 @@ class REDUCEOutputThread extends Thread {
                 inputAttributeSet = algebraicInputAttributeSet;
                 break;
         }
-        // Must output characters rather than lines so that prompt appears!
-        try (InputStreamReader isr = new InputStreamReader(input);
-             BufferedReader br = new BufferedReader(isr)) {
-            int c, promptIndex;
-            String promptString;
-            for (; ; ) {
-                if (!br.ready()) {
-                    int textLength = text.length();
-                    if (textLength > 0) {
-
-                        switch (RRPreferences.colouredIOState) {
-                            case NONE:
-                            default: // no IO display colouring, but maybe prompt processing
-                                if ((RRPreferences.boldPromptsState) &&
-                                        (promptIndex = text.lastIndexOf("\n") + 1) < textLength &&
-                                        promptPattern.matcher(promptString = text.substring(promptIndex)).matches()) {
-                                    styledDoc.insertString(styledDoc.getLength(), text.substring(0, promptIndex), null);
-                                    styledDoc.insertString(styledDoc.getLength(), promptString, promptAttributeSet);
-                                } else
-                                    styledDoc.insertString(styledDoc.getLength(), text.toString(), null);
-                                break;
-
-                            case MODAL: // mode coloured IO display processing
-                                // Split off the final line, which should consist of the next input prompt:
-                                promptIndex = text.lastIndexOf("\n") + 1;
-                                Matcher promptMatcher;
-                                if (promptIndex < textLength &&
-                                        (promptMatcher = promptPattern.matcher(promptString = text.substring(promptIndex))).matches()) {
-                                    styledDoc.insertString(styledDoc.getLength(), text.substring(0, promptIndex), outputAttributeSet);
-                                    // Only colour output *after* initial REDUCE header.
-                                    switch (promptMatcher.group(1)) {
-                                        case "*":
-                                            promptAttributeSet = symbolicPromptAttributeSet;
-                                            inputAttributeSet = symbolicInputAttributeSet;
-                                            outputAttributeSet = symbolicOutputAttributeSet;
-                                            break;
-                                        case ":":
-                                        default:
-                                            promptAttributeSet = algebraicPromptAttributeSet;
-                                            inputAttributeSet = algebraicInputAttributeSet;
-                                            outputAttributeSet = algebraicOutputAttributeSet;
-                                            break;
-                                    }
-                                    styledDoc.insertString(styledDoc.getLength(), promptString, promptAttributeSet);
-                                } else
-                                    styledDoc.insertString(styledDoc.getLength(), text.toString(), outputAttributeSet);
-                                break; // end of case RunREDUCEPrefs.MODE
-
-                            case REDFRONT: // redfront coloured IO display processing
-                                /*
-                                 * The markup output by the redfront package uses ASCII control characters:
-                                 * ^A prompt ^B input
-                                 * ^C algebraic-mode output ^D
-                                 * where ^A = \u0001, etc. ^A/^B and ^C/^D should always be paired.
-                                 * Prompts and input are always red, algebraic-mode output is blue,
-                                 * but any other output (echoed input or symbolic-mode output) is not coloured.
-                                 */
-                                // Must process arbitrary chunks of output, which may not contain matched pairs of start and end markers:
-                                for (; ; ) {
-                                    int algOutputStartMarker = text.indexOf("\u0003");
-                                    int algOutputEndMarker = text.indexOf("\u0004");
-                                    if (algOutputStartMarker >= 0 && algOutputEndMarker >= 0) {
-                                        if (algOutputStartMarker < algOutputEndMarker) {
-                                            // TEXT < algOutputStartMarker < TEXT < algOutputEndMarker
-                                            styledDoc.insertString(styledDoc.getLength(), text.substring(0, algOutputStartMarker), null);
-                                            styledDoc.insertString(styledDoc.getLength(), text.substring(algOutputStartMarker + 1, algOutputEndMarker), algebraicOutputAttributeSet);
-                                            outputAttributeSet = null;
-                                            text.delete(0, algOutputEndMarker + 1);
-                                        } else {
-                                            // TEXT < algOutputEndMarker < TEXT < algOutputStartMarker
-                                            styledDoc.insertString(styledDoc.getLength(), text.substring(0, algOutputEndMarker), algebraicOutputAttributeSet);
-                                            styledDoc.insertString(styledDoc.getLength(), text.substring(algOutputEndMarker + 1, algOutputStartMarker), null);
-                                            outputAttributeSet = algebraicOutputAttributeSet;
-                                            text.delete(0, algOutputStartMarker + 1);
-                                        }
-                                    } else if (algOutputStartMarker >= 0) {
-                                        // TEXT < algOutputStartMarker < TEXT
-                                        styledDoc.insertString(styledDoc.getLength(), text.substring(0, algOutputStartMarker), null);
-                                        styledDoc.insertString(styledDoc.getLength(), text.substring(algOutputStartMarker + 1), algebraicOutputAttributeSet);
-                                        outputAttributeSet = algebraicOutputAttributeSet;
-                                        break;
-                                    } else if (algOutputEndMarker >= 0) {
-                                        // TEXT < algOutputEndMarker < TEXT
-                                        styledDoc.insertString(styledDoc.getLength(), text.substring(0, algOutputEndMarker), algebraicOutputAttributeSet);
-                                        outputAttributeSet = null;
-                                        processPromptMarkers(algOutputEndMarker + 1);
-                                        break;
-                                    } else {
-                                        // No algebraic output markers.
-                                        processPromptMarkers(0);
-                                        break;
-                                    }
-                                }
-                                break; // end of case RunREDUCEPrefs.REDFRONT
-                        } // end of switch (RunREDUCEPrefs.colouredIOState)
-
-                        text.setLength(0); // delete any remaining text
-                        outputTextPane.setCaretPosition(styledDoc.getLength());
-                    }
-                    Thread.sleep(10);
-                } else if ((c = br.read()) != -1) {
-                    if (RunREDUCE.debugOutput) {
-                        if (Character.isISOControl((char) c)) {
-                            if ((char) c != '\r') {
-                                if ((char) c == '\n')
-                                    text.append((char) c);
-                                else
-                                    text.append('|').append((char) c).append('^').append((char) (c + 64)).append('|');
-                            }
-                        } else
-                            text.append((char) c);
-                    } else {
-                        if ((char) c != '\r') // ignore CRs
-                            text.append((char) c);
-                    }
-                } else break;
+        // Read whatever output is available in bulk, blocking (rather than polling) while REDUCE is idle,
+        // and decode it directly into the reused char buffer.
+        // Any incomplete multi-byte character at the end of a read remains in the byte buffer for the next read.
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.wrap(byteBuffer);
+        CharBuffer chars = CharBuffer.wrap(buffer);
+        try (InputStream input = this.input) {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                int length = input.read(byteBuffer, bytes.position(), bytes.remaining());
+                if (length == -1) endOfInput = true;
+                // Must flush partial lines whenever no more output is immediately available so that prompts appear!
+                boolean endOfBurst = endOfInput || input.available() == 0;
+                if (!endOfInput) {
+                    if (tap != null) tap.record(byteBuffer, bytes.position(), length, endOfBurst);
+                    bytes.position(bytes.position() + length);
+                }
+                bytes.flip();
+                for (; ; ) {
+                    CoderResult result = decoder.decode(bytes, chars, endOfInput);
+                    if (endOfInput && result.isUnderflow()) result = decoder.flush(chars);
+                    process(chars.position(), endOfBurst && !result.isOverflow());
+                    chars.clear();
+                    if (!result.isOverflow()) break;
+                }
+                bytes.compact();
             }
         } catch (Exception exc) {
             exc.printStackTrace();
+        } finally {
+            promptDetector.end();
+            if (tap != null) tap.close();
         }
     }
 
-    void processPromptMarkers(int start) throws BadLocationException {
-        // Look for prompt markers:
-        int promptStartMarker = text.indexOf("\u0001", start);
-        int promptEndMarker = text.indexOf("\u0002", start);
-        if (promptStartMarker >= 0 && promptEndMarker >= 0) {
-            styledDoc.insertString(styledDoc.getLength(), text.substring(start, promptStartMarker), outputAttributeSet);
-            styledDoc.insertString(styledDoc.getLength(), text.substring(promptStartMarker + 1, promptEndMarker), algebraicPromptAttributeSet);
-            styledDoc.insertString(styledDoc.getLength(), text.substring(promptEndMarker + 1), null);
+    /**
+     * Process the first length characters of the decoded read buffer.
+     * If endOfBurst then no more output is immediately available, so all text must be queued for display.
+     */
+    private void process(int length, boolean endOfBurst) {
+        promptDetector.scan(buffer, 0, length);
+        if (RRPreferences.colouredIOState == RRPreferences.ColouredIO.REDFRONT) {
+            // Parse the markup directly from the read buffer; the output queue batches the runs.
+            flush(); // any text read before switching to redfront
+            redfrontParser.parse(buffer, 0, length);
+            outputQueue.setQuestionPrompt(promptDetector.isQuestionPrompt());
         } else {
-            styledDoc.insertString(styledDoc.getLength(), text.substring(start), outputAttributeSet);
+            append(length);
+            if (endOfBurst || text.length() >= MAX_TEXT_LENGTH) flush();
         }
     }
+
+    /**
+     * Append the first length characters of the read buffer to the text to be displayed.
+     */
+    private void append(int length) { // ignoring CRs
+        int start = 0;
+        for (int i = 0; i < length; i++)
+            if (buffer[i] == '\r') {
+                text.append(buffer, start, i - start);
+                start = i + 1;
+            }
+        text.append(buffer, start, length - start);
+    }
+
+    /**
+     * Queue the accumulated text for the GUI output pane with appropriate styling.
+     */
+    private void flush() {
+        int textLength = text.length();
+        if (textLength == 0) return;
+        // If the text ends with a prompt then split it off (from the start of the text if it began earlier):
+        int promptIndex = promptDetector.isPrompt() ? Math.max(textLength - promptDetector.getLineLength(), 0) : -1;
+
+        switch (RRPreferences.colouredIOState) {
+            case NONE:
+            default: // no IO display colouring, but maybe prompt processing
+                if ((RRPreferences.boldPromptsState) && promptIndex >= 0) {
+                    outputQueue.append(text, 0, promptIndex, null);
+                    outputQueue.append(text, promptIndex, textLength, promptAttributeSet);
+                } else
+                    outputQueue.append(text, null);
+                break;
+
+            case MODAL: // mode coloured IO display processing
+                // The final line should consist of the next input prompt:
+                if (promptIndex >= 0) {
+                    outputQueue.append(text, 0, promptIndex, outputAttributeSet);
+                    // Only colour output *after* initial REDUCE header.
+                    switch (promptDetector.getMode()) {
+                        case SYMBOLIC:
+                            promptAttributeSet = symbolicPromptAttributeSet;
+                            inputAttributeSet = symbolicInputAttributeSet;
+                            outputAttributeSet = symbolicOutputAttributeSet;
+                            break;
+                        case ALGEBRAIC:
+                        default:
+                            promptAttributeSet = algebraicPromptAttributeSet;
+                            inputAttributeSet = algebraicInputAttributeSet;
+                            outputAttributeSet = algebraicOutputAttributeSet;
+                            break;
+                    }
+                    outputQueue.append(text, promptIndex, textLength, promptAttributeSet);
+                } else
+                    outputQueue.append(text, outputAttributeSet);
+                break; // end of case RunREDUCEPrefs.MODE
+
+            case REDFRONT: // redfront markup is processed by RedfrontParser
+                // so only reached with text read before switching to redfront:
+                outputQueue.append(text, null);
+                break; // end of case RunREDUCEPrefs.REDFRONT
+        } // end of switch (RunREDUCEPrefs.colouredIOState)
+
+        outputQueue.setQuestionPrompt(promptDetector.isQuestionPrompt());
+        text.setLength(0); // delete any remaining text
+    }
 }
@@ -0,0 +1,235 @@
+package fjwright.runreduce;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a pool of idle REDUCE processes for each version of REDUCE that has a non-zero pool size,
+ * which have already started and run the version's warm-up script and are waiting at a prompt,
+ * so that running REDUCE in a panel can adopt one instead of waiting for REDUCE to start.
+ * Each adoption starts a replacement in the background.
+ * <p>
+ * The output of a warming process is read and kept until it prompts after its warm-up script,
+ * and then nothing reads it until a panel adopts the process and displays the kept output first.
+ * Pools are keyed by the built command, encoding and warm-up script,
+ * so changing the configuration of a version discards its idle processes.
+ */
+class REDUCEProcessPool {
+    private static final long WARM_UP_TIMEOUT_SECONDS = 60; // before abandoning a process that does not prompt
+    private static final Map<String, Pool> pools = new HashMap<>(); // guarded by REDUCEProcessPool.class
+
+    private REDUCEProcessPool() {
+    }
+
+    /**
+     * This class represents an idle REDUCE process and the output it produced while warming up.
+     */
+    static class WarmProcess {
+        final Process process;
+        private final byte[] output;
+        final long memory; // resident bytes of the process tree when it became idle, or 0 if unknown
+
+        private WarmProcess(Process process, byte[] output, long memory) {
+            this.process = process;
+            this.output = output;
+            this.memory = memory;
+        }
+
+        /**
+         * Return a stream of all the output of this process, starting with the output read while warming up.
+         */
+        InputStream getInputStream() {
+            return new SequenceInputStream(new ByteArrayInputStream(output), process.getInputStream());
+        }
+    }
+
+    private static class Pool {
+        final String key;
+        final String[] command;
+        final Charset charset;
+        final byte[] warmUpScript;
+        final int warmUpPrompt; // the number of the prompt that follows the warm-up script
+        int size;
+        long memoryCap;         // bytes, or 0 for no cap
+        long processMemory;     // of the latest process to become idle, or 0 if unknown
+        int warming;            // number of processes still warming up
+        final Deque<WarmProcess> idle = new ArrayDeque<>();
+
+        Pool(String key, String[] command, Charset charset, String warmUpScript) {
+            this.key = key;
+            this.command = command;
+            this.charset = charset;
+            this.warmUpScript = warmUpScript.getBytes(charset);
+            warmUpPrompt = 1 + PromptDetector.countStatements(warmUpScript);
+        }
+
+        void configure(REDUCECommand reduceCommand) {
+            size = reduceCommand.poolSize;
+            memoryCap = (long) reduceCommand.poolMemoryCap << 20;
+        }
+
+        long idleMemory() {
+            long memory = 0;
+            for (WarmProcess warmProcess : idle) memory += warmProcess.memory;
+            return memory;
+        }
+
+        /**
+         * Return true if another process of the specified size would fit within the memory cap,
+         * assuming that processes still warming up will be the size of the latest idle process.
+         */
+        boolean fits(long memory) {
+            return memoryCap == 0 || idleMemory() + warming * processMemory + memory <= memoryCap;
+        }
+    }
+
+    private static String key(String[] command, Charset charset, String warmUpScript) {
+        return String.join("\0", command) + '\0' + charset.name() + '\0' + warmUpScript;
+    }
+
+    /**
+     * Remove and return an idle process for the specified version of REDUCE, whose command has been built,
+     * or return null if there is none, and start warming up replacements in the background.
+     */
+    static synchronized WarmProcess adopt(REDUCECommand reduceCommand, String[] command, Charset charset) {
+        if (reduceCommand.poolSize <= 0) return null;
+        String key = key(command, charset, reduceCommand.warmUpScript);
+        Pool pool = pools.computeIfAbsent(key, k -> new Pool(k, command, charset, reduceCommand.warmUpScript));
+        pool.configure(reduceCommand);
+        WarmProcess warmProcess = pool.idle.poll();
+        while (warmProcess != null && !warmProcess.process.isAlive()) warmProcess = pool.idle.poll();
+        fill(pool);
+        return warmProcess;
+    }
+
+    /**
+     * Start warming up processes for each version of REDUCE in the specified list that has a non-zero pool size,
+     * and discard the idle processes of any other version or previous configuration.
+     */
+    static synchronized void configure(REDUCECommandList reduceCommandList) {
+        Map<String, Pool> oldPools = new HashMap<>(pools);
+        pools.clear();
+        for (REDUCECommand reduceCommand : reduceCommandList) {
+            if (reduceCommand.poolSize <= 0) continue;
+            String[] command = reduceCommand.buildCommand();
+            if (command == null) continue;
+            Charset charset = reduceCommand.getCharset();
+            if (charset == null) continue;
+            String key = key(command, charset, reduceCommand.warmUpScript);
+            Pool pool = oldPools.remove(key);
+            if (pool == null) pool = new Pool(key, command, charset, reduceCommand.warmUpScript);
+            pool.configure(reduceCommand);
+            while (!pool.idle.isEmpty() && (pool.idle.size() > pool.size || !pool.fits(0)))
+                destroy(pool.idle.removeLast().process);
+            pools.put(key, pool);
+            fill(pool);
+        }
+        for (Pool pool : oldPools.values())
+            for (WarmProcess warmProcess : pool.idle) destroy(warmProcess.process);
+    }
+
+    /**
+     * Start warming up enough processes to make up the size of the specified pool,
+     * unless the memory cap would be exceeded.
+     * This method must be called holding the REDUCEProcessPool.class lock.
+     */
+    private static void fill(Pool pool) {
+        while (pool.idle.size() + pool.warming < pool.size && pool.fits(pool.processMemory)) {
+            pool.warming++;
+            REDUCEIOScheduler.execute("REDUCE warm-up", () -> warmUp(pool));
+        }
+    }
+
+    /**
+     * Start a process for the specified pool, send it the warm-up script,
+     * read its output until the following prompt and then add it to the pool's idle processes.
+     */
+    private static void warmUp(Pool pool) {
+        Process p = null;
+        WarmProcess warmProcess = null;
+        try {
+            ProcessBuilder pb = new ProcessBuilder(pool.command);
+            pb.redirectErrorStream(true);
+            p = pb.start();
+            Process process = p;
+            REDUCEPanel.processes.add(process);
+            process.onExit().thenRun(() -> {
+                REDUCEPanel.processes.remove(process);
+                discard(pool, process);
+            });
+            // Abandon a process that does not prompt, which also ends the read below:
+            CompletableFuture<Void> warmedUp = new CompletableFuture<>();
+            warmedUp.orTimeout(WARM_UP_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .exceptionally(exc -> {
+                        destroy(process);
+                        return null;
+                    });
+            if (pool.warmUpScript.length > 0) {
+                OutputStream input = p.getOutputStream();
+                input.write(pool.warmUpScript);
+                input.flush();
+            }
+            byte[] output = readToPrompt(p.getInputStream(), pool.charset, pool.warmUpPrompt);
+            warmedUp.complete(null);
+            warmProcess = new WarmProcess(p, output, REDUCETelemetry.residentMemory(p.toHandle()));
+        } catch (IOException exc) {
+            System.err.println("Cannot warm up REDUCE process " + Arrays.toString(pool.command) + ": " + exc);
+        }
+        synchronized (REDUCEProcessPool.class) {
+            pool.warming--;
+            if (warmProcess != null && pools.get(pool.key) == pool &&
+                    pool.idle.size() < pool.size && pool.fits(warmProcess.memory)) {
+                pool.idle.add(warmProcess);
+                if (warmProcess.memory > 0) pool.processMemory = warmProcess.memory;
+                return;
+            }
+        }
+        if (p != null) destroy(p);
+    }
+
+    /**
+     * Remove the specified process, which has ended, from the idle processes of the specified pool.
+     */
+    private static synchronized void discard(Pool pool, Process process) {
+        pool.idle.removeIf(warmProcess -> warmProcess.process == process);
+    }
+
+    /**
+     * Read and return the output of a warming process up to the specified prompt,
+     * provided no more output is immediately available.
+     */
+    private static byte[] readToPrompt(InputStream input, Charset charset, int promptNumber) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(8192);
+        CharBuffer charBuffer = CharBuffer.allocate(8192);
+        PromptDetector promptDetector = new PromptDetector();
+        while (true) {
+            int length = input.read(byteBuffer.array(), byteBuffer.position(), byteBuffer.remaining());
+            if (length < 0) throw new EOFException("REDUCE ended while warming up");
+            output.write(byteBuffer.array(), byteBuffer.position(), length);
+            byteBuffer.position(byteBuffer.position() + length).flip();
+            decoder.decode(byteBuffer, charBuffer, false);
+            byteBuffer.compact();
+            promptDetector.scan(charBuffer.array(), 0, charBuffer.position());
+            charBuffer.clear();
+            if (promptDetector.isPrompt() && promptDetector.getPromptNumber() >= promptNumber &&
+                    input.available() == 0)
+                return output.toByteArray();
+        }
+    }
+
+    private static void destroy(Process p) {
+        p.descendants().forEach(ProcessHandle::destroy);
+        p.destroy();
+    }
+}
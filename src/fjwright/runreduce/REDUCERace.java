@@ -0,0 +1,628 @@
+package fjwright.runreduce;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * This class races two REDUCE engines, normally CSL and PSL REDUCE, by sending every input to both of them
+ * and passing on the output of whichever finishes each statement first.
+ * It is a process so that a REDUCE panel can run a race as it runs a single REDUCE process:
+ * its input stream is the winning output, Break interrupts both engines and Stop REDUCE stops both.
+ * <p>
+ * The output of each engine is divided into segments, each ending with a numbered prompt,
+ * so that segment N is the output of statement N and segment 0 is the start-up output.
+ * The first engine to finish a segment wins it and the other engine's output for it is discarded,
+ * except that an engine that stops at a question before the segment has been won wins it at once,
+ * so that the question is displayed and can be answered.
+ * An engine that ends, or stops at a Lisp break-loop prompt while the other engine is still racing,
+ * leaves the race, because it can no longer be kept in step.
+ * If losers are cancelled then a CSL loser still running a clearly pure statement, which is the last one sent,
+ * is interrupted, which cannot change its session.
+ * A PSL loser is never interrupted, because PSL answers an interrupt with a break loop.
+ * <p>
+ * The time each engine takes for each statement is shown as it finishes and is appended,
+ * with the statement and the ratio of the times, to ~/.Run-REDUCE/race-times.csv,
+ * so that it is possible to learn which engine is faster for each kind of computation.
+ */
+class REDUCERace extends Process {
+    private static final Path TIMES_FILE =
+            Paths.get(System.getProperty("user.home"), ".Run-REDUCE", "race-times.csv");
+    private static final int MAX_LOGGED_STATEMENT_LENGTH = 200;
+    private static final byte[] END_OF_OUTPUT = new byte[0];
+    private static final Pattern QUIT = Pattern.compile("(?i)\\s*(?:bye|quit)\\s*");
+
+    private final Engine[] engines;
+    private final Charset charset; // of the winning output and of the input sent to the race
+    private final Consumer<String> listener; // called with a summary of the race after each statement
+    private final OutputStream input;
+    private final LinkedBlockingQueue<byte[]> outputQueue = new LinkedBlockingQueue<>();
+    private final InputStream output = new WinningOutput();
+
+    // Race state, all guarded by this:
+    private int delivered;   // number of segments passed on
+    private Engine claimant; // engine that has won the current segment before finishing it, or null
+    private final List<String> statements = new ArrayList<>(); // sent so far, indexed from segment 1
+    private final Set<String> userNames = new HashSet<>(); // declared by procedure, operator or let
+    private final StringBuilder pendingInput = new StringBuilder(); // not yet terminated
+    // Times taken by each engine for statements not yet logged, 0 if unknown and -1 if cancelled:
+    private final SortedMap<Integer, long[]> statementNanos = new TreeMap<>();
+    private int loggedStatements;     // number of statements whose times have been logged
+    private int timedStatements;      // with times for both engines
+    private double logRatioSum;       // of the second engine's time to the first engine's
+    private String lastTimes = "";
+
+    /**
+     * This class represents one of the racing REDUCE processes.
+     */
+    private class Engine {
+        final String name;
+        final Process process;
+        final Charset charset;
+        final Writer writer;
+        // CSL returns to its prompt when interrupted but PSL enters a Lisp break loop, which would end its race:
+        final boolean interruptible;
+        final PromptDetector promptDetector = new PromptDetector();
+        final StringBuilder segment = new StringBuilder(); // unfinished
+        final SortedMap<Integer, String> finished = new TreeMap<>(); // segments finished but not yet won
+        int segments;          // number of segments finished
+        long segmentStartNanos;
+        boolean awaitingInput; // at the prompt that ended its latest segment, with no further input sent
+        volatile boolean racing = true;
+        int wins;
+
+        Engine(String name, String[] command, Charset charset) throws IOException {
+            this.name = name;
+            this.charset = charset;
+            interruptible = REDUCESessionImage.pslImageIndex(command) < 0 && !name.toUpperCase().contains("PSL");
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            process = pb.start();
+            REDUCEPanel.processes.add(process);
+            process.onExit().thenRun(() -> REDUCEPanel.processes.remove(process));
+            writer = new OutputStreamWriter(process.getOutputStream(), charset);
+            segmentStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Start the specified REDUCE commands, whose versions are named as specified, and race them.
+     *
+     * @param listener called on the REDUCE output reader of an engine with a summary of the race.
+     */
+    REDUCERace(String name1, String[] command1, Charset charset1,
+               String name2, String[] command2, Charset charset2, Consumer<String> listener) throws IOException {
+        charset = charset1;
+        input = new InputMirror();
+        this.listener = listener;
+        engines = new Engine[2];
+        engines[0] = new Engine(name1, command1, charset1);
+        try {
+            engines[1] = new Engine(name2, command2, charset2);
+        } catch (IOException exc) {
+            engines[0].process.destroy();
+            throw exc;
+        }
+        for (Engine engine : engines)
+            REDUCEIOScheduler.execute("REDUCE race " + engine.name, () -> read(engine));
+    }
+
+    /**
+     * Return the versions of REDUCE in the specified list to race, i.e. CSL REDUCE and PSL REDUCE,
+     * or else the first versions whose names include CSL and PSL, or null if there are not both.
+     */
+    static REDUCECommand[] engines(REDUCECommandList reduceCommandList) {
+        REDUCECommand csl = find(reduceCommandList, REDUCEConfigurationDefault.CSL_REDUCE, "CSL");
+        REDUCECommand psl = find(reduceCommandList, REDUCEConfigurationDefault.PSL_REDUCE, "PSL");
+        return csl == null || psl == null ? null : new REDUCECommand[]{csl, psl};
+    }
+
+    private static REDUCECommand find(REDUCECommandList reduceCommandList, String version, String lisp) {
+        for (REDUCECommand cmd : reduceCommandList)
+            if (cmd.version.equals(version)) return cmd;
+        for (REDUCECommand cmd : reduceCommandList)
+            if (cmd.version.toUpperCase().contains(lisp)) return cmd;
+        return null;
+    }
+
+    /**
+     * Read the output of the specified engine, divide it into segments and pass on the winners.
+     */
+    private void read(Engine engine) {
+        CharsetDecoder decoder = engine.charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(8192);
+        CharBuffer charBuffer = CharBuffer.allocate(8192);
+        try (InputStream in = engine.process.getInputStream()) {
+            for (int length; (length = in.read(byteBuffer.array(), byteBuffer.position(), byteBuffer.remaining()))
+                    != -1; ) {
+                byteBuffer.position(byteBuffer.position() + length).flip();
+                decoder.decode(byteBuffer, charBuffer, false);
+                byteBuffer.compact();
+                scan(engine, charBuffer.array(), charBuffer.position());
+                charBuffer.clear();
+                if (in.available() == 0) stalled(engine);
+            }
+        } catch (IOException ignored) { // the engine has been stopped
+        }
+        engine.promptDetector.end();
+        ended(engine);
+    }
+
+    /**
+     * Scan the specified output of the specified engine, ending a segment after each numbered prompt.
+     * A prompt is recognised after each space, which ends every prompt.
+     */
+    private void scan(Engine engine, char[] chars, int length) {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (chars[i] != ' ') continue;
+            engine.promptDetector.scan(chars, start, i + 1 - start);
+            engine.segment.append(chars, start, i + 1 - start);
+            start = i + 1;
+            if (engine.promptDetector.isPrompt()) finishSegment(engine);
+        }
+        engine.promptDetector.scan(chars, start, length - start);
+        engine.segment.append(chars, start, length - start);
+        synchronized (this) {
+            if (claimant == engine) pass(engine.segment);
+        }
+    }
+
+    private synchronized void finishSegment(Engine engine) {
+        int index = engine.segments++;
+        long now = System.nanoTime();
+        if (index > 0 && engine.racing) recordTime(index, engine, now - engine.segmentStartNanos);
+        engine.segmentStartNanos = now;
+        engine.awaitingInput = engine.segments > statements.size();
+        if (claimant == engine) {
+            pass(engine.segment);
+            claimant = null;
+            won(engine);
+        } else if (index >= delivered && engine.racing) engine.finished.put(index, engine.segment.toString());
+        engine.segment.setLength(0);
+        deliver();
+    }
+
+    /**
+     * Pass on every finished segment that is next in order, each from the engine that finished it first,
+     * and then cancel any interruptible loser that is still running a clearly pure statement if losers are cancelled.
+     */
+    private void deliver() {
+        while (claimant == null) {
+            Engine winner = null;
+            for (Engine engine : engines)
+                if (engine.finished.containsKey(delivered)) {
+                    winner = engine;
+                    break;
+                }
+            if (winner == null) return;
+            pass(winner.finished.remove(delivered));
+            won(winner);
+        }
+    }
+
+    /**
+     * Record that the specified engine has won the segment being delivered, discard the other engines' output
+     * for it, and cancel any loser still running it if required.
+     */
+    private void won(Engine winner) {
+        int index = delivered++;
+        if (index > 0) winner.wins++;
+        for (Engine engine : engines) {
+            engine.finished.headMap(delivered).clear();
+            if (engine != winner && engine.racing && engine.interruptible && engine.segments == index &&
+                    index > 0 && index == statements.size() && RRPreferences.raceCancelLoser &&
+                    !RRPreferences.windowsOS && REDUCEResultCache.isPure(statements.get(index - 1), userNames))
+                REDUCEIOScheduler.execute("REDUCE race interrupter", () -> cancel(engine, index));
+        }
+    }
+
+    /**
+     * Interrupt the specified engine, which has lost the specified statement, provided it is still running it
+     * and no later statement has been sent, which the interrupt might reach instead.
+     * Holding the lock while interrupting delays any further input until the interrupt has been sent.
+     */
+    private synchronized void cancel(Engine engine, int index) {
+        if (!engine.racing || engine.segments != index || statements.size() != index) return;
+        REDUCEPanel.sendInterrupt(engine.process);
+        recordTime(index, engine, -1);
+    }
+
+    /**
+     * Pass on the specified text as winning output.
+     * This method must be called holding the lock on this race.
+     */
+    private void pass(CharSequence text) {
+        if (text.length() == 0) return;
+        outputQueue.add(text.toString().getBytes(charset));
+        if (text instanceof StringBuilder) ((StringBuilder) text).setLength(0);
+    }
+
+    /**
+     * Handle the specified engine waiting for input part way through a segment.
+     * If it has stopped at a question then it wins the segment at once so that the question can be answered.
+     * If it has stopped in a Lisp break loop then it leaves the race unless it is the only engine still racing.
+     */
+    private synchronized void stalled(Engine engine) {
+        if (!engine.racing || engine.segment.length() == 0 || claimant != null) return;
+        PromptDetector promptDetector = engine.promptDetector;
+        if (promptDetector.isBreakPrompt()) {
+            for (Engine other : engines)
+                if (other != engine && other.racing) {
+                    leave(engine, "entered a Lisp break loop");
+                    return;
+                }
+        } else if (!promptDetector.isQuestionPrompt()) return;
+        if (engine.segments != delivered) return;
+        claimant = engine;
+        pass(engine.segment);
+    }
+
+    /**
+     * Handle the end of the output of the specified engine, which passes on its unfinished output
+     * if it has already won the current segment, it has quit, or it is the last engine.
+     * An engine that quits first ends the race.
+     */
+    private synchronized void ended(Engine engine) {
+        boolean wasRacing = engine.racing;
+        engine.racing = false;
+        boolean othersRacing = Arrays.stream(engines).anyMatch(other -> other.racing);
+        boolean quit = engine.segments > 0 && engine.segments <= statements.size() &&
+                QUIT.matcher(statements.get(engine.segments - 1)).matches();
+        if (wasRacing && (claimant == engine ||
+                claimant == null && (quit || !othersRacing) && engine.segments >= delivered)) {
+            engine.finished.put(engine.segments, engine.segment.toString());
+            if (claimant == engine) claimant = null;
+            deliver();
+        }
+        engine.finished.clear();
+        if (wasRacing && quit && othersRacing) {
+            for (Engine other : engines)
+                if (other.racing) {
+                    other.racing = false;
+                    destroy(other.process);
+                }
+            othersRacing = false;
+        }
+        if (wasRacing && othersRacing) {
+            lastTimes = engine.name + " has ended";
+            logTimes();
+        }
+        if (!othersRacing) outputQueue.add(END_OF_OUTPUT);
+    }
+
+    /**
+     * Remove the specified engine from the race and stop it, for the specified reason.
+     */
+    private void leave(Engine engine, String reason) {
+        engine.racing = false;
+        engine.finished.clear();
+        lastTimes = engine.name + " has left the race because it " + reason;
+        logTimes();
+        destroy(engine.process);
+    }
+
+    private static void destroy(Process p) {
+        REDUCEIOScheduler.execute("REDUCE race reaper", () -> {
+            p.descendants().forEach(ProcessHandle::destroy);
+            p.destroy();
+        });
+    }
+
+    /**
+     * Record the time taken by the specified engine to run the specified statement, or -1 if it was cancelled.
+     */
+    private void recordTime(int index, Engine engine, long nanos) {
+        long[] times = statementNanos.get(index);
+        if (times == null) {
+            if (index <= loggedStatements) return; // finished after being cancelled
+            statementNanos.put(index, times = new long[engines.length]);
+        }
+        int e = engine == engines[0] ? 0 : 1;
+        if (times[e] == 0) times[e] = nanos;
+        logTimes();
+    }
+
+    /**
+     * Log and summarise, in order, each statement that both engines have run or that can no longer be run by both.
+     */
+    private void logTimes() {
+        boolean logged = false;
+        while (!statementNanos.isEmpty()) {
+            int index = statementNanos.firstKey();
+            long[] times = statementNanos.get(index);
+            if ((times[0] == 0 && engines[0].racing) || (times[1] == 0 && engines[1].racing)) break;
+            statementNanos.remove(index);
+            loggedStatements = index;
+            String statement = index <= statements.size() ? statements.get(index - 1).trim() : "";
+            lastTimes = "last statement " + engines[0].name + " " + format(times[0]) +
+                    ", " + engines[1].name + " " + format(times[1]);
+            if (times[0] > 0 && times[1] > 0) {
+                timedStatements++;
+                logRatioSum += Math.log((double) times[1] / times[0]);
+            }
+            REDUCEIOScheduler.execute("REDUCE race log", () -> log(statement, times));
+            logged = true;
+        }
+        if (logged || !lastTimes.isEmpty()) summarise();
+    }
+
+    private static String format(long nanos) {
+        return nanos > 0 ? REDUCETelemetry.formatSeconds(nanos) : nanos < 0 ? "cancelled" : "-";
+    }
+
+    private void summarise() {
+        StringBuilder summary = new StringBuilder("race won ");
+        for (Engine engine : engines)
+            summary.append(engine == engines[0] ? "" : ", ").append(engine.name).append(' ').append(engine.wins);
+        if (timedStatements > 0)
+            summary.append(String.format(Locale.ROOT, ", time ratio %s/%s %.2f",
+                    engines[1].name, engines[0].name, Math.exp(logRatioSum / timedStatements)));
+        if (!lastTimes.isEmpty()) summary.append("; ").append(lastTimes);
+        listener.accept(summary.toString());
+    }
+
+    /**
+     * Append the times taken by both engines to run the specified statement to the race times file.
+     */
+    private void log(String statement, long[] times) {
+        String text = statement.replaceAll("\\s+", " ");
+        if (text.length() > MAX_LOGGED_STATEMENT_LENGTH)
+            text = text.substring(0, MAX_LOGGED_STATEMENT_LENGTH) + "...";
+        String line = String.format(Locale.ROOT, "%s,%s,%s,%s,%s,%s,\"%s\"%n",
+                LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS),
+                engines[0].name, seconds(times[0]), engines[1].name, seconds(times[1]),
+                times[0] > 0 && times[1] > 0 ? String.format(Locale.ROOT, "%.3f", (double) times[1] / times[0]) : "",
+                text.replace("\"", "\"\""));
+        try {
+            Files.createDirectories(TIMES_FILE.getParent());
+            boolean header = Files.notExists(TIMES_FILE);
+            try (Writer writer = Files.newBufferedWriter(TIMES_FILE, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                if (header) writer.write("time,engine1,seconds1,engine2,seconds2,ratio2to1,statement\n");
+                writer.write(line);
+            }
+        } catch (IOException exc) {
+            System.err.println("Cannot write race times: " + exc);
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return nanos > 0 ? String.format(Locale.ROOT, "%.3f", nanos / 1e9) : nanos < 0 ? "cancelled" : "";
+    }
+
+    /**
+     * Record input sent to the race, so that the statement of each segment is known.
+     */
+    private synchronized void sent(String text) {
+        long now = System.nanoTime();
+        for (Engine engine : engines)
+            if (engine.awaitingInput) {
+                engine.awaitingInput = false;
+                engine.segmentStartNanos = now;
+            }
+        if (claimant != null) return; // an answer to a question, which is part of the current statement
+        pendingInput.append(text);
+        String pending = pendingInput.toString();
+        int count = PromptDetector.countStatements(pending);
+        if (count == 0) return;
+        List<String> split = PromptDetector.splitStatements(pending);
+        statements.addAll(split.subList(0, count));
+        for (String statement : split.subList(0, count)) REDUCEResultCache.addUserNames(statement, userNames);
+        pendingInput.setLength(0);
+        if (split.size() > count) pendingInput.append(split.get(count));
+    }
+
+    /**
+     * This class sends input to both engines, converting it from the race's encoding to each engine's encoding.
+     */
+    private class InputMirror extends OutputStream {
+        private final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer all = ByteBuffer.allocate(bytes.remaining() + len);
+            all.put(bytes).put(b, off, len).flip();
+            CharBuffer chars = CharBuffer.allocate(all.remaining());
+            decoder.decode(all, chars, false);
+            bytes = all; // any incomplete character
+            String text = chars.flip().toString();
+            sent(text);
+            IOException error = null;
+            for (Engine engine : engines) {
+                if (!engine.racing) continue;
+                try {
+                    engine.writer.write(text);
+                } catch (IOException exc) {
+                    error = exc;
+                }
+            }
+            if (error != null && Arrays.stream(engines).noneMatch(engine -> engine.racing && engine.process.isAlive()))
+                throw error;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            for (Engine engine : engines)
+                if (engine.racing) try {
+                    engine.writer.flush();
+                } catch (IOException ignored) { // the engine is leaving the race
+                }
+        }
+
+        @Override
+        public void close() {
+            for (Engine engine : engines)
+                try {
+                    engine.writer.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+
+    /**
+     * This class provides the winning output.
+     */
+    private class WinningOutput extends InputStream {
+        private byte[] current = new byte[0];
+        private int position;
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (position == current.length) {
+                if (ended) return -1;
+                try {
+                    current = outputQueue.take();
+                } catch (InterruptedException exc) {
+                    throw new InterruptedIOException();
+                }
+                position = 0;
+                if (current == END_OF_OUTPUT) ended = true;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current.length - position;
+        }
+    }
+
+    // Process methods, which apply to both engines, with the first engine still running as the main process:
+
+    private Process main() {
+        for (Engine engine : engines)
+            if (engine.process.isAlive()) return engine.process;
+        return engines[0].process;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return input;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return output;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return InputStream.nullInputStream();
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        for (Engine engine : engines) engine.process.waitFor();
+        return exitValue();
+    }
+
+    /**
+     * Return the exit value of the first engine that did not exit normally, or 0.
+     */
+    @Override
+    public int exitValue() {
+        int exitValue = 0;
+        for (Engine engine : engines) {
+            int value = engine.process.exitValue();
+            if (exitValue == 0) exitValue = value;
+        }
+        return exitValue;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return Arrays.stream(engines).anyMatch(engine -> engine.process.isAlive());
+    }
+
+    @Override
+    public CompletableFuture<Process> onExit() {
+        return CompletableFuture.allOf(Arrays.stream(engines).map(engine -> engine.process.onExit())
+                .toArray(CompletableFuture[]::new)).thenApply(v -> this);
+    }
+
+    @Override
+    public void destroy() {
+        for (Engine engine : engines) engine.process.destroy();
+    }
+
+    @Override
+    public Process destroyForcibly() {
+        for (Engine engine : engines) engine.process.destroyForcibly();
+        return this;
+    }
+
+    @Override
+    public boolean supportsNormalTermination() {
+        return main().supportsNormalTermination();
+    }
+
+    @Override
+    public long pid() {
+        return main().pid();
+    }
+
+    @Override
+    public ProcessHandle toHandle() {
+        return main().toHandle();
+    }
+
+    @Override
+    public ProcessHandle.Info info() {
+        return main().info();
+    }
+
+    /**
+     * Return the other engines and all their descendants, so that they are included with the main process.
+     */
+    @Override
+    public Stream<ProcessHandle> children() {
+        Process main = main();
+        return Arrays.stream(engines).map(engine -> engine.process)
+                .flatMap(p -> p == main ? p.children() : Stream.of(p.toHandle()));
+    }
+
+    @Override
+    public Stream<ProcessHandle> descendants() {
+        Process main = main();
+        return Arrays.stream(engines).map(engine -> engine.process)
+                .flatMap(p -> p == main ? p.descendants() : Stream.concat(Stream.of(p.toHandle()), p.descendants()));
+    }
+}
@@ -0,0 +1,441 @@
+package fjwright.runreduce;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import java.awt.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class caches the styled output of clearly pure algebraic-mode statements that take a noticeable time,
+ * on disk across sessions, so that sending the same statement again in the same session context
+ * replays its output instantly, marked as cached, instead of sending it to REDUCE.
+ * The session context consists of the REDUCE version and command, the I/O colouring,
+ * the packages loaded and switches set, and every other statement that might have changed the session,
+ * all known from the input sent to REDUCE.
+ * A statement is clearly pure if it assigns nothing and uses none of the commands that declare, define,
+ * read or write anything, depend on previous results or vary from run to run.
+ * <p>
+ * Each result is a file in ~/.Run-REDUCE/cache named by a digest of the statement and its session context,
+ * and the least recently used results are deleted to keep the total size of the cache within its limit.
+ * Caching is opt-in, because a replayed statement is not evaluated by REDUCE, so REDUCE does not record it
+ * as its latest result and its prompt number does not change.
+ */
+class REDUCEResultCache {
+    private static final Path CACHE_DIR = Paths.get(System.getProperty("user.home"), ".Run-REDUCE", "cache");
+    private static final String EXTENSION = ".res";
+    private static final int FORMAT = 1;                   // of result files
+    private static final long MIN_STATEMENT_MILLIS = 200;  // faster statements are not worth caching
+    private static final int MAX_RESULT_LENGTH = 1 << 20;  // characters of output worth caching
+    static final String CACHED_NOTE = "(Result replayed from the Run-REDUCE cache, not evaluated by REDUCE.)\n\n";
+    static final SimpleAttributeSet cachedAttributeSet = new SimpleAttributeSet();
+
+    static {
+        StyleConstants.setForeground(cachedAttributeSet, Color.gray);
+        StyleConstants.setItalic(cachedAttributeSet, true);
+    }
+
+    private static final Pattern LOAD_PACKAGE = Pattern.compile("(?i)load_package\\s+([\\w\\s,]+)");
+    private static final Pattern SWITCH = Pattern.compile("(?i)(on|off)\\s+([\\w\\s,]+)");
+    // Commands, at the start of a statement, whose effect on the session cannot be known from their text
+    // (but not the in of for each x in ...):
+    private static final Pattern UNKNOWABLE = Pattern.compile("(?i)^(?:(?:in|input|load)[\\s\"]|(?:pause|cont)$)");
+    // Declarations of names whose meaning the session defines, so calls to them may have side effects:
+    private static final Pattern PROCEDURE = Pattern.compile("(?i)\\bprocedure\\s+([a-z][\\w!]*)");
+    private static final Pattern OPERATOR = Pattern.compile("(?i)\\boperator\\s+([\\w!\\s,]+)");
+    private static final Pattern LET = Pattern.compile("(?i)\\blet\\s+(.*)");
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z][\\w!]*");
+    // Statements that may change or depend on the session state beyond their arguments, or vary from run to run:
+    private static final Pattern IMPURE = Pattern.compile("(?i):=|\\b(?:" +
+            "ws|let|clear|clearrules|match|forall|operator|procedure|macro|depend|nodepend|array|matrix|" +
+            "share|global|fluid|factor|remfac|order|korder|torder|weight|wtlevel|setmod|infix|precedence|" +
+            "precision|print_precision|linelength|scientific_notation|rlset|" +
+            "linear|odd|even|noncom|symmetric|antisymmetric|realvalued|notrealvalued|" +
+            "on|off|load_package|load|out|shut|write|pause|cont|saveas|set|setq|put|flag|" +
+            "remflag|remprop|define|random|random_new_seed|time|showtime|date|bye|quit|end|" +
+            "symbolic|lisp|algebraic|tr|untr|trst)\\b");
+
+    // The least recently used result first, by key, with their file sizes (guarded by REDUCEResultCache.class):
+    private static LinkedHashMap<String, Long> index;
+    private static long totalSize;
+
+    private REDUCEResultCache() {
+    }
+
+    /**
+     * This class tracks the context of a REDUCE session from the input sent to it.
+     */
+    static class Context {
+        private final String session; // version, command and I/O colouring
+        private final SortedSet<String> packages = new TreeSet<>();
+        private final SortedMap<String, String> switches = new TreeMap<>();
+        private String history = ""; // digest of all other statements that might have changed the session
+        private final Set<String> userNames = new HashSet<>(); // declared by procedure, operator or let
+        private boolean unknowable;  // the session has read input that cannot be known
+
+        Context(String version, String[] command, RRPreferences.ColouredIO colouredIO) {
+            session = version + '\0' + String.join("\0", command) + '\0' + colouredIO;
+        }
+
+        /**
+         * Update this context with the specified input, which has been sent to REDUCE.
+         */
+        void sent(String input) {
+            for (String statement : PromptDetector.splitStatements(input)) {
+                statement = normalise(statement);
+                if (statement.isEmpty()) continue;
+                addUserNames(statement, userNames);
+                Matcher matcher;
+                if ((matcher = LOAD_PACKAGE.matcher(statement)).matches())
+                    for (String pkg : matcher.group(1).split("[\\s,]+")) packages.add(pkg.toLowerCase());
+                else if ((matcher = SWITCH.matcher(statement)).matches())
+                    for (String name : matcher.group(2).split("[\\s,]+"))
+                        switches.put(name.toLowerCase(), matcher.group(1).toLowerCase());
+                else if (UNKNOWABLE.matcher(statement).find()) unknowable = true;
+                else if (IMPURE.matcher(statement).find()) history = digest(history + '\0' + statement);
+            }
+        }
+
+        /**
+         * Return the cache key of the specified input in this context,
+         * or null if it is not a single clearly pure statement whose output is displayed.
+         */
+        String key(String input) {
+            if (unknowable || !input.trim().endsWith(";")) return null;
+            List<String> statements = PromptDetector.splitStatements(input);
+            if (statements.size() != 1) return null;
+            String statement = normalise(statements.get(0));
+            if (statement.isEmpty() || !isPure(statement, userNames)) return null;
+            return digest(session + '\0' + packages + '\0' + switches + '\0' + history + '\0' + statement);
+        }
+    }
+
+    /**
+     * Return true if the specified statement, without its terminator, is clearly pure,
+     * i.e. it can neither change nor depend on the session state beyond its own arguments,
+     * given the names declared in the session so far by procedure, operator or let.
+     */
+    static boolean isPure(String statement, Set<String> userNames) {
+        if (IMPURE.matcher(statement).find() || UNKNOWABLE.matcher(statement.trim()).find()) return false;
+        Matcher matcher = IDENTIFIER.matcher(statement);
+        while (matcher.find())
+            if (userNames.contains(matcher.group().toLowerCase())) return false;
+        return true;
+    }
+
+    /**
+     * Add to userNames, in lower case, each name that the specified statement declares as a procedure
+     * or operator, or for which it gives a let rule, i.e. the leading name of the left side of each rule.
+     */
+    static void addUserNames(String statement, Set<String> userNames) {
+        Matcher matcher;
+        if ((matcher = PROCEDURE.matcher(statement)).find()) userNames.add(matcher.group(1).toLowerCase());
+        if ((matcher = OPERATOR.matcher(statement)).find())
+            for (String name : matcher.group(1).trim().split("[\\s,]+"))
+                if (!name.isEmpty()) userNames.add(name.toLowerCase());
+        if ((matcher = LET.matcher(statement)).find()) {
+            // Split the rules, which may be in a list, at commas outside brackets:
+            int depth = 0, start = 0;
+            String rules = matcher.group(1).trim();
+            if (rules.startsWith("{")) rules = rules.substring(1);
+            for (int i = 0; i <= rules.length(); i++) {
+                char c = i < rules.length() ? rules.charAt(i) : ',';
+                if (c == '(' || c == '{') depth++;
+                else if (c == ')' || c == '}') depth--;
+                else if (c == ',' && depth <= 0) {
+                    Matcher name = IDENTIFIER.matcher(rules.substring(start, i));
+                    if (name.find()) userNames.add(name.group().toLowerCase());
+                    start = i + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the specified statement with each run of white space outside strings replaced by a single space.
+     */
+    private static String normalise(String statement) {
+        StringBuilder sb = new StringBuilder();
+        boolean string = false, space = false;
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (c == '"') string = !string;
+            if (!string && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.length() > 0) sb.append(' ');
+            space = false;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String digest(String text) {
+        StringBuilder digest = new StringBuilder();
+        try {
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)))
+                digest.append(String.format("%02x", b));
+        } catch (NoSuchAlgorithmException exc) { // SHA-256 is always supported
+            throw new IllegalStateException(exc);
+        }
+        return digest.toString();
+    }
+
+    /**
+     * This class represents the styled output of a statement, up to but excluding the following prompt.
+     */
+    static class Result {
+        final List<String> runTexts = new ArrayList<>();
+        final List<AttributeSet> runAttributes = new ArrayList<>();
+        AttributeSet promptAttributes; // of the following prompt
+    }
+
+    /**
+     * This class captures the styled output of a statement from an output queue until the following prompt.
+     */
+    static class Capture {
+        private final String key;
+        private final String promptText;
+        private final long startMillis = System.currentTimeMillis();
+        private final StringBuilder text = new StringBuilder();
+        private final List<Integer> runEnds = new ArrayList<>();
+        private final List<AttributeSet> runAttributes = new ArrayList<>();
+        final CompletableFuture<Result> done = new CompletableFuture<>(); // with null if not cacheable
+
+        /**
+         * @param promptNumber the number of the prompt that will follow the output.
+         */
+        Capture(String key, int promptNumber) {
+            this.key = key;
+            promptText = promptNumber + ": ";
+        }
+
+        /**
+         * Add the specified run of output and return true if the capture has ended.
+         * This method is called by the output queue holding its lock.
+         */
+        boolean add(CharSequence s, int start, int end, AttributeSet attributes) {
+            if (done.isDone()) return true;
+            text.append(s, start, end);
+            int last = runAttributes.size() - 1;
+            if (last >= 0 && runAttributes.get(last) == attributes) runEnds.set(last, text.length());
+            else {
+                runEnds.add(text.length());
+                runAttributes.add(attributes);
+            }
+            if (text.length() > MAX_RESULT_LENGTH) done.complete(null);
+            else if (text.length() >= promptText.length() &&
+                    text.indexOf(promptText, text.length() - promptText.length()) >= 0) done.complete(result());
+            return done.isDone();
+        }
+
+        /**
+         * Abandon this capture, e.g. because REDUCE asked a question or was interrupted.
+         */
+        void cancel() {
+            done.complete(null);
+        }
+
+        private Result result() {
+            // Not worth caching, or an error or interrupt:
+            if (System.currentTimeMillis() - startMillis < MIN_STATEMENT_MILLIS ||
+                    text.indexOf("*****") >= 0 || text.indexOf("+++ Interrupted") >= 0) return null;
+            Result result = new Result();
+            int outputEnd = text.length() - promptText.length();
+            for (int i = 0, start = 0; i < runEnds.size() && start < outputEnd; i++) {
+                int end = Math.min(runEnds.get(i), outputEnd);
+                result.runTexts.add(text.substring(start, end));
+                result.runAttributes.add(runAttributes.get(i));
+                start = end;
+            }
+            result.promptAttributes = runAttributes.get(runAttributes.size() - 1);
+            return result;
+        }
+
+        String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Return the attribute sets that can be stored in the cache, in the order of their codes.
+     */
+    private static AttributeSet[] styles() {
+        return new AttributeSet[]{null,
+                REDUCEOutputReader.algebraicOutputAttributeSet, REDUCEOutputReader.symbolicOutputAttributeSet,
+                REDUCEOutputReader.algebraicPromptAttributeSet, REDUCEOutputReader.symbolicPromptAttributeSet,
+                REDUCEOutputReader.algebraicInputAttributeSet, REDUCEOutputReader.symbolicInputAttributeSet,
+                REDUCEOutputReader.promptAttributeSet};
+    }
+
+    private static int code(AttributeSet[] styles, AttributeSet attributes) {
+        for (int i = 1; i < styles.length; i++)
+            if (styles[i] == attributes) return i;
+        return 0;
+    }
+
+    /**
+     * Load the index of the cache from the result files, least recently used first.
+     */
+    private static synchronized void loadIndex() {
+        if (index != null) return;
+        index = new LinkedHashMap<>(16, 0.75f, true);
+        totalSize = 0;
+        try (Stream<Path> paths = Files.list(CACHE_DIR)) {
+            List<Path> files = paths.filter(path -> path.toString().endsWith(EXTENSION)).collect(Collectors.toList());
+            Map<Path, FileTime> times = new HashMap<>();
+            for (Path file : files) times.put(file, Files.getLastModifiedTime(file));
+            files.sort(Comparator.comparing(times::get));
+            for (Path file : files) {
+                long size = Files.size(file);
+                String name = file.getFileName().toString();
+                index.put(name.substring(0, name.length() - EXTENSION.length()), size);
+                totalSize += size;
+            }
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    /**
+     * Return the cached result with the specified key, or null if there is none.
+     * This method reads only a small file, so it may be called on the event-dispatching thread.
+     */
+    static Result get(String key) {
+        Path file = CACHE_DIR.resolve(key + EXTENSION);
+        synchronized (REDUCEResultCache.class) {
+            loadIndex();
+            if (index.get(key) == null) return null; // which also marks the result as recently used
+        }
+        AttributeSet[] styles = styles();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT) return null;
+            Result result = new Result();
+            for (int i = in.readInt(); i > 0; i--) {
+                result.runAttributes.add(styles[Math.min(in.readUnsignedByte(), styles.length - 1)]);
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                result.runTexts.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            result.promptAttributes = styles[Math.min(in.readUnsignedByte(), styles.length - 1)];
+            // Record the use on disk for the next session:
+            REDUCEIOScheduler.execute("REDUCE result cache", () -> {
+                try {
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                } catch (IOException ignored) {
+                }
+            });
+            return result;
+        } catch (IOException exc) {
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store the specified result in the background and then delete the least recently used results
+     * while the cache is larger than its limit.
+     */
+    static void put(String key, Result result) {
+        AttributeSet[] styles = styles();
+        REDUCEIOScheduler.execute("REDUCE result cache", () -> {
+            try {
+                Files.createDirectories(CACHE_DIR);
+                Path temp = Files.createTempFile(CACHE_DIR, "result", ".tmp");
+                try (DataOutputStream out =
+                             new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(FORMAT);
+                    out.writeInt(result.runTexts.size());
+                    for (int i = 0; i < result.runTexts.size(); i++) {
+                        out.writeByte(code(styles, result.runAttributes.get(i)));
+                        byte[] bytes = result.runTexts.get(i).getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    out.writeByte(code(styles, result.promptAttributes));
+                }
+                long size = Files.size(temp);
+                Files.move(temp, CACHE_DIR.resolve(key + EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+                synchronized (REDUCEResultCache.class) {
+                    loadIndex();
+                    Long oldSize = index.put(key, size);
+                    totalSize += size - (oldSize != null ? oldSize : 0);
+                }
+                trim();
+            } catch (IOException exc) {
+                exc.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Delete the least recently used results while the cache is larger than its limit.
+     */
+    static void trim() {
+        long limit = (long) RRPreferences.resultCacheSize << 20;
+        List<String> evicted = new ArrayList<>();
+        synchronized (REDUCEResultCache.class) {
+            loadIndex();
+            for (Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+                 totalSize > limit && iterator.hasNext(); ) {
+                Map.Entry<String, Long> entry = iterator.next();
+                evicted.add(entry.getKey());
+                totalSize -= entry.getValue();
+                iterator.remove();
+            }
+        }
+        for (String key : evicted) delete(key);
+    }
+
+    /**
+     * Delete all cached results.
+     */
+    static void clear() {
+        List<String> keys;
+        synchronized (REDUCEResultCache.class) {
+            loadIndex();
+            keys = new ArrayList<>(index.keySet());
+            index.clear();
+            totalSize = 0;
+        }
+        REDUCEIOScheduler.execute("REDUCE result cache", () -> {
+            for (String key : keys) delete(key);
+        });
+    }
+
+    private static synchronized void remove(String key) {
+        Long size = index.remove(key);
+        if (size != null) totalSize -= size;
+        delete(key);
+    }
+
+    private static void delete(String key) {
+        try {
+            Files.deleteIfExists(CACHE_DIR.resolve(key + EXTENSION));
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    /**
+     * Return a description of the number and total size of the cached results.
+     */
+    static synchronized String describe() {
+        loadIndex();
+        return index.size() + " results, " + REDUCETelemetry.formatMegabytes(totalSize);
+    }
+}
@@ -0,0 +1,264 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class builds and manages session images for versions of REDUCE that have an image script,
+ * using REDUCE's own image-saving facility, so that REDUCE can start with packages already loaded
+ * and setup definitions already made.
+ * An image is saved by running the version's command on the image script followed by
+ * savesystem for PSL, which is recognised by its "-f image" arguments,
+ * or otherwise preserve for CSL, whose output image is specified by the "-o" argument.
+ * Each image is registered as a derived REDUCE command, which runs the image and is offered in the Run REDUCE menu.
+ * <p>
+ * Image file names include a digest of the version, the built command, the encoding, the image script
+ * and the sizes and modification times of the base installation files in the command and their sibling images,
+ * so an image is rebuilt automatically when any of them changes and images that are no longer wanted are deleted.
+ */
+class REDUCESessionImage {
+    static final String VERSION_SUFFIX = " (session image)";
+    private static final Path IMAGE_DIR = Paths.get(System.getProperty("user.home"), ".Run-REDUCE", "images");
+    private static final String IMAGE_EXTENSION = ".img";
+    private static final long BUILD_TIMEOUT_MINUTES = 10;
+    private static final int OUTPUT_TAIL_LENGTH = 2000; // of build output shown when a build fails
+
+    // Used only on the event-dispatching thread:
+    static final REDUCECommandList imageCommandList = new REDUCECommandList(); // derived commands of built images
+    private static final Set<Path> building = new HashSet<>();
+    private static Set<Path> wanted = new HashSet<>();
+
+    private REDUCESessionImage() {
+    }
+
+    /**
+     * Register the built images of the versions of REDUCE in the specified list that have an image script,
+     * start building any that are missing in the background, and delete all other images.
+     * This method should be called on the event-dispatching thread.
+     */
+    static void configure(REDUCECommandList reduceCommandList) {
+        imageCommandList.clear();
+        wanted = new HashSet<>();
+        for (REDUCECommand reduceCommand : reduceCommandList) {
+            if (reduceCommand.imageScript.isEmpty()) continue;
+            String[] command = reduceCommand.buildCommand();
+            if (command == null) continue;
+            Charset charset = reduceCommand.getCharset();
+            if (charset == null) continue;
+            Path image = imagePath(reduceCommand, command);
+            wanted.add(image);
+            if (Files.isRegularFile(image)) imageCommandList.add(imageCommand(reduceCommand, command, image));
+            else if (building.add(image))
+                REDUCEIOScheduler.execute("REDUCE image builder", () -> build(reduceCommand, command, charset, image));
+        }
+        // Delete images of previous configurations, installations or scripts:
+        try (Stream<Path> paths = Files.list(IMAGE_DIR)) {
+            for (Path path : paths.collect(Collectors.toList()))
+                if (path.toString().endsWith(IMAGE_EXTENSION) && !wanted.contains(path)) Files.deleteIfExists(path);
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+        RRMenuBar.runREDUCESubmenuBuild();
+    }
+
+    /**
+     * Return the path of the image for the specified version of REDUCE, whose command has been built.
+     */
+    private static Path imagePath(REDUCECommand reduceCommand, String[] command) {
+        StringBuilder key = new StringBuilder(reduceCommand.version).append('\0');
+        for (String element : command) key.append(element).append('\0');
+        key.append(reduceCommand.encoding).append('\0').append(reduceCommand.imageScript).append('\0');
+        // The base installation files, including the CSL image found beside its executable:
+        SortedSet<Path> files = new TreeSet<>();
+        for (String element : command) {
+            Path path = Paths.get(element);
+            if (!Files.isRegularFile(path)) continue;
+            files.add(path);
+            Path dir = path.toAbsolutePath().getParent();
+            if (dir != null) try (Stream<Path> siblings = Files.list(dir)) {
+                siblings.filter(p -> p.toString().endsWith(IMAGE_EXTENSION)).forEach(files::add);
+            } catch (IOException ignored) {
+            }
+        }
+        for (Path file : files)
+            try {
+                key.append(file).append('\0').append(Files.size(file)).append('\0')
+                        .append(Files.getLastModifiedTime(file).toMillis()).append('\0');
+            } catch (IOException ignored) {
+            }
+        StringBuilder digest = new StringBuilder();
+        try {
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(key.toString().getBytes(StandardCharsets.UTF_8)))
+                digest.append(String.format("%02x", b));
+        } catch (NoSuchAlgorithmException exc) { // SHA-256 is always supported
+            throw new IllegalStateException(exc);
+        }
+        return IMAGE_DIR.resolve(reduceCommand.version.replaceAll("[^A-Za-z0-9]+", "-") + "-" +
+                digest.substring(0, 16) + IMAGE_EXTENSION);
+    }
+
+    /**
+     * Return the index of the image argument of a PSL command, which follows "-f", or -1 for a CSL command.
+     */
+    static int pslImageIndex(String[] command) {
+        for (int i = 1; i < command.length - 1; i++)
+            if (command[i].equals("-f")) return i + 1;
+        return -1;
+    }
+
+    /**
+     * Return the command to run the specified image derived from the specified command.
+     */
+    private static String[] runCommand(String[] command, Path image) {
+        int index = pslImageIndex(command);
+        if (index >= 0) {
+            String[] runCommand = command.clone();
+            runCommand[index] = image.toString();
+            return runCommand;
+        }
+        // CSL: the session image is the initial image, followed by the default image for any packages not loaded:
+        List<String> runCommand = new ArrayList<>(Arrays.asList(command));
+        runCommand.addAll(1, Arrays.asList("-i", image.toString()));
+        Path defaultImage = Paths.get(command[0]).resolveSibling("reduce" + IMAGE_EXTENSION);
+        if (Files.isRegularFile(defaultImage)) runCommand.addAll(3, Arrays.asList("-i", defaultImage.toString()));
+        return runCommand.toArray(new String[0]);
+    }
+
+    /**
+     * Return a derived REDUCE command that runs the specified image of the specified version of REDUCE,
+     * with the same settings apart from the image script.
+     */
+    private static REDUCECommand imageCommand(REDUCECommand reduceCommand, String[] command, Path image) {
+        REDUCECommand imageCommand = new REDUCECommand(reduceCommand.version + VERSION_SUFFIX,
+                reduceCommand.versionRootDir, runCommand(command, image));
+        imageCommand.encoding = reduceCommand.encoding;
+        imageCommand.poolSize = reduceCommand.poolSize;
+        imageCommand.poolMemoryCap = reduceCommand.poolMemoryCap;
+        imageCommand.warmUpScript = reduceCommand.warmUpScript;
+        return imageCommand;
+    }
+
+    /**
+     * Build the specified image by running the image script and saving the image in a temporary directory,
+     * then move it into place and register it, or report why it could not be built.
+     */
+    private static void build(REDUCECommand reduceCommand, String[] command, Charset charset, Path image) {
+        String error = null;
+        StringBuilder output = new StringBuilder();
+        Path buildDir = null;
+        try {
+            Files.createDirectories(IMAGE_DIR);
+            buildDir = Files.createTempDirectory(IMAGE_DIR, "build");
+            // PSL may add the extension to the file name, so the image is whatever file appears in buildDir:
+            String savedImage = buildDir.resolve("image").toString().replace('\\', '/');
+            String[] buildCommand;
+            String save;
+            int index = pslImageIndex(command);
+            if (index >= 0) {
+                buildCommand = command;
+                save = "symbolic savesystem(" + quote(reduceCommand.version) + ", " + quote(savedImage) + ", nil);\n";
+            } else {
+                List<String> list = new ArrayList<>(Arrays.asList(command));
+                list.addAll(1, Arrays.asList("-o", savedImage + IMAGE_EXTENSION));
+                buildCommand = list.toArray(new String[0]);
+                save = "symbolic preserve('begin, " + quote(reduceCommand.version) + ", nil);\n";
+            }
+            ProcessBuilder pb = new ProcessBuilder(buildCommand);
+            pb.redirectErrorStream(true);
+            Process p = pb.start();
+            REDUCEPanel.processes.add(p);
+            // Stop a build that takes too long, which also ends the read below:
+            AtomicBoolean timedOut = new AtomicBoolean();
+            p.onExit().orTimeout(BUILD_TIMEOUT_MINUTES, TimeUnit.MINUTES).exceptionally(exc -> {
+                timedOut.set(true);
+                p.descendants().forEach(ProcessHandle::destroyForcibly);
+                p.destroyForcibly();
+                return null;
+            });
+            try {
+                try (OutputStream input = p.getOutputStream()) {
+                    input.write((reduceCommand.imageScript + "\n" + save + "bye;\n").getBytes(charset));
+                }
+                byte[] bytes = new byte[8192];
+                try (InputStream in = p.getInputStream()) {
+                    for (int length; (length = in.read(bytes)) != -1; ) {
+                        output.append(new String(bytes, 0, length, charset));
+                        if (output.length() > 2 * OUTPUT_TAIL_LENGTH)
+                            output.delete(0, output.length() - OUTPUT_TAIL_LENGTH);
+                    }
+                }
+                p.waitFor();
+                if (timedOut.get()) error = "it did not finish within " + BUILD_TIMEOUT_MINUTES + " minutes";
+            } finally {
+                p.descendants().forEach(ProcessHandle::destroy);
+                p.destroy();
+                REDUCEPanel.processes.remove(p);
+            }
+            if (error == null) {
+                Path saved;
+                try (Stream<Path> paths = Files.list(buildDir)) {
+                    saved = paths.findFirst().orElse(null);
+                }
+                if (saved == null) error = "REDUCE did not save an image";
+                else Files.move(saved, image, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException exc) {
+            error = exc.toString();
+        } catch (InterruptedException exc) {
+            error = "it was interrupted";
+        } finally {
+            if (buildDir != null) try (Stream<Path> paths = Files.walk(buildDir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                    Files.deleteIfExists(path);
+            } catch (IOException exc) {
+                exc.printStackTrace();
+            }
+        }
+        String message = error == null ? null : "The session image for " + reduceCommand.version +
+                " could not be built because " + error + ".\nThe end of the REDUCE output was:\n" +
+                output.substring(Math.max(output.length() - OUTPUT_TAIL_LENGTH, 0));
+        SwingUtilities.invokeLater(() -> built(reduceCommand, command, image, message));
+    }
+
+    /**
+     * Return the specified text as a REDUCE string.
+     */
+    private static String quote(String text) {
+        return '"' + text.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Register the specified image if it has been built and is still wanted, or else report the error.
+     */
+    private static void built(REDUCECommand reduceCommand, String[] command, Path image, String error) {
+        building.remove(image);
+        if (error != null) {
+            RunREDUCE.errorMessageDialog(error, "REDUCE Session Image Error");
+            return;
+        }
+        if (!wanted.contains(image)) { // the configuration has changed since the build started
+            try {
+                Files.deleteIfExists(image);
+            } catch (IOException exc) {
+                exc.printStackTrace();
+            }
+            return;
+        }
+        imageCommandList.add(imageCommand(reduceCommand, command, image));
+        imageCommandList.sort(Comparator.comparing(cmd -> cmd.version));
+        RRMenuBar.runREDUCESubmenuBuild();
+    }
+}
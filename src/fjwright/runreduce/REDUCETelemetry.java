@@ -0,0 +1,197 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class samples the CPU time, resident memory and page faults of the REDUCE process tree
+ * running in each REDUCE panel, on one shared low-frequency thread however many panels there are,
+ * and shows each sample in its panel.
+ * The figures are read from /proc/PID/stat and /proc/PID/status, so on platforms without /proc
+ * only the CPU time is available, via ProcessHandle.
+ */
+class REDUCETelemetry {
+    private static final long SAMPLE_INTERVAL_SECONDS = 2;
+    private static final long CPU_TRACKING_INTERVAL_MILLIS = 100;
+    // Linux reports CPU times in clock ticks of 1/USER_HZ second, where USER_HZ is 100 on all common platforms:
+    private static final long NANOS_PER_TICK = 10_000_000;
+    private static final Map<REDUCEPanel, Process> panels = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService sampler; // guarded by REDUCETelemetry.class
+    private static ScheduledFuture<?> sampling;      // guarded by REDUCETelemetry.class
+
+    private REDUCETelemetry() {
+    }
+
+    /**
+     * This class represents a sample of the resource use of a REDUCE process tree.
+     */
+    static class Sample {
+        long cpuNanos;
+        long residentBytes = -1; // or -1 if unknown
+        long minorFaults = -1;   // or -1 if unknown
+        long majorFaults = -1;   // or -1 if unknown
+    }
+
+    /**
+     * Start sampling the specified process running in the specified panel.
+     */
+    static synchronized void register(REDUCEPanel panel, Process process) {
+        panels.put(panel, process);
+        if (sampling != null) return;
+        sampling = sampler().scheduleWithFixedDelay(REDUCETelemetry::sampleAll,
+                0, SAMPLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService sampler() {
+        if (sampler == null) sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "REDUCE telemetry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return sampler;
+    }
+
+    /**
+     * Track the CPU time of the specified process and its descendants until it ends,
+     * because it cannot be read once the process has ended, and return the latest value.
+     */
+    static AtomicLong trackCPU(Process p) {
+        AtomicLong cpuNanos = new AtomicLong();
+        ScheduledFuture<?> tracking = sampler().scheduleWithFixedDelay(
+                () -> cpuNanos.accumulateAndGet(cpuNanos(p), Math::max),
+                0, CPU_TRACKING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        p.onExit().thenRun(() -> tracking.cancel(false));
+        return cpuNanos;
+    }
+
+    /**
+     * Stop sampling the specified panel, and stop sampling altogether if no panel is running REDUCE.
+     */
+    static synchronized void unregister(REDUCEPanel panel) {
+        panels.remove(panel);
+        if (panels.isEmpty() && sampling != null) {
+            sampling.cancel(false);
+            sampling = null;
+        }
+    }
+
+    private static void sampleAll() {
+        for (Map.Entry<REDUCEPanel, Process> entry : panels.entrySet()) {
+            REDUCEPanel panel = entry.getKey();
+            Process process = entry.getValue();
+            if (!process.isAlive()) continue;
+            Sample sample = sample(process);
+            SwingUtilities.invokeLater(() -> panel.showTelemetry(process, sample));
+        }
+    }
+
+    /**
+     * Return a sample of the resource use of the specified process and its descendants.
+     */
+    static Sample sample(Process p) {
+        Sample sample = new Sample();
+        try {
+            sample.residentBytes = sample.minorFaults = sample.majorFaults = 0;
+            add(sample, p.pid());
+        } catch (IOException | RuntimeException exc) { // no /proc
+            Sample cpuSample = new Sample();
+            cpuSample.cpuNanos = cpuNanos(p);
+            return cpuSample;
+        }
+        p.descendants().forEach(handle -> {
+            try {
+                add(sample, handle.pid());
+            } catch (IOException | RuntimeException ignored) { // the process has just ended
+            }
+        });
+        return sample;
+    }
+
+    /**
+     * Add the resource use of the specified process, read from /proc, to the specified sample.
+     */
+    private static void add(Sample sample, long pid) throws IOException {
+        long[] stat = readStat(pid);
+        long residentBytes = readResidentBytes(pid);
+        sample.minorFaults += stat[0];
+        sample.majorFaults += stat[1];
+        sample.cpuNanos += (stat[2] + stat[3]) * NANOS_PER_TICK;
+        sample.residentBytes += residentBytes;
+    }
+
+    /**
+     * Return the total CPU time used by the specified process and its descendants in nanoseconds,
+     * or 0 if it is not available.
+     */
+    static long cpuNanos(Process p) {
+        return p == null ? 0 : Stream.concat(Stream.of(p.toHandle()), p.descendants())
+                .mapToLong(h -> h.info().totalCpuDuration().map(Duration::toNanos).orElse(0L)).sum();
+    }
+
+    /**
+     * Return the total resident memory of the specified process and its descendants in bytes,
+     * or 0 if it is unknown, which it is on platforms without /proc.
+     */
+    static long residentMemory(ProcessHandle processHandle) {
+        long memory = 0;
+        for (ProcessHandle handle : tree(processHandle).collect(Collectors.toList())) {
+            try {
+                memory += readResidentBytes(handle.pid());
+            } catch (IOException | RuntimeException exc) {
+                return 0;
+            }
+        }
+        return memory;
+    }
+
+    private static Stream<ProcessHandle> tree(ProcessHandle processHandle) {
+        return Stream.concat(Stream.of(processHandle), processHandle.descendants());
+    }
+
+    /**
+     * Return the minor faults, major faults, user time and system time of the specified process
+     * from /proc/PID/stat, in which the command name field is in parentheses and may contain spaces.
+     */
+    private static long[] readStat(long pid) throws IOException {
+        String stat = new String(Files.readAllBytes(Paths.get("/proc", pid + "", "stat")));
+        // Fields from the state, which is field 3, onwards:
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        return new long[]{
+                Long.parseLong(fields[10 - 3]),  // minflt
+                Long.parseLong(fields[12 - 3]),  // majflt
+                Long.parseLong(fields[14 - 3]),  // utime
+                Long.parseLong(fields[15 - 3])}; // stime
+    }
+
+    private static long readResidentBytes(long pid) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get("/proc", pid + "", "status"))) {
+            for (String line; (line = reader.readLine()) != null; )
+                if (line.startsWith("VmRSS:")) // e.g. "VmRSS:	   12345 kB"
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) << 10;
+        }
+        return 0; // a zombie or kernel thread has no resident memory
+    }
+
+    /**
+     * Return the specified number of nanoseconds as seconds for display.
+     */
+    static String formatSeconds(long nanos) {
+        return String.format("%.1f s", nanos / 1e9);
+    }
+
+    /**
+     * Return the specified number of bytes as megabytes for display.
+     */
+    static String formatMegabytes(long bytes) {
+        return String.format("%.0f MB", bytes / (double) (1 << 20));
+    }
+}
@@ -0,0 +1,385 @@
+package fjwright.runreduce;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs the REDUCE package tests without a GUI, as a regression check of a REDUCE build,
+ * using the saved REDUCE configuration, with up to a specified number of REDUCE processes running concurrently.
+ * It is invoked by the -test argument, which must be followed only by test arguments:
+ * <pre>
+ * java -jar Run-REDUCE.jar -test [-version VERSION]... [-jobs N] [-output DIR] [-timeout SECONDS]
+ *      [-baseline FILE] [-saveBaseline] [PACKAGE...]
+ * </pre>
+ * The tests are those packages in packages/package.map under the packages root directory
+ * that have both a test file PACKAGE.tst and a reference log PACKAGE.rlg in their directory,
+ * restricted to the specified packages if any, and each is run by each specified version of REDUCE,
+ * by default all the configured versions, unless the package map flags it for only the other Lisp.
+ * The output of each test is compared with its reference log line by line as it is output, ignoring blank lines,
+ * trailing spaces and lines that report times, and is also written to DIR/PACKAGE-VERSION.log.
+ * <p>
+ * Times are compared with a baseline of the times of previous runs that passed,
+ * by default in ~/.Run-REDUCE/test-baseline.properties, which -saveBaseline updates,
+ * and the tests with the longest baseline times are started first so that they do not finish last.
+ */
+class REDUCETestRunner {
+    private static final Path BASELINE_DEFAULT =
+            Paths.get(System.getProperty("user.home"), ".Run-REDUCE", "test-baseline.properties");
+    private static final double SLOWDOWN_RATIO = 1.25;     // test time relative to baseline worth reporting
+    private static final double SLOWDOWN_MIN_SECONDS = 0.5; // and absolute increase, to ignore noise
+    private static final String BEGIN_MARKER = "Run-REDUCE test output begins";
+    // Lines of test output that vary from run to run and are not compared:
+    private static final Pattern IGNORED = Pattern.compile(
+            "(?i).*\\btime\\b.*\\d+\\s*ms.*|tested on .*|.*\\bgarbage collect.*|\\s*end of (?:file|test).*");
+    private static final Pattern PROMPTS = Pattern.compile("(?:\\d+: )+");
+    // A package map entry, e.g. (algint "algint" test csl psl):
+    private static final Pattern PACKAGE_MAP_ENTRY = Pattern.compile("\\s*\\((\\w+)\\s+\"([^\"]*)\"([^)]*)\\)");
+
+    private final List<String> versions = new ArrayList<>();
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private Path outputDir = Paths.get("");
+    private long timeoutSeconds; // 0 for no timeout
+    private Path baselineFile = BASELINE_DEFAULT;
+    private boolean saveBaseline;
+    private final Set<String> packages = new HashSet<>();
+
+    /**
+     * This class represents a package test and the result of running it with one version of REDUCE.
+     */
+    private static class Test extends REDUCEBatch.Outcome {
+        final String pkg, version;
+        final Path tst, rlg, log;
+        final String[] command;
+        final Charset charset;
+        double baselineSeconds = -1; // or -1 if there is no baseline
+        String difference;           // the first difference from the reference log, or null if none
+
+        Test(String pkg, Path tst, REDUCECommand reduceCommand, String[] command, Charset charset, Path log) {
+            this.pkg = pkg;
+            this.version = reduceCommand.version;
+            this.tst = tst;
+            rlg = tst.resolveSibling(pkg + ".rlg");
+            this.command = command;
+            this.charset = charset;
+            this.log = log;
+        }
+
+        String key() {
+            return version + "/" + pkg;
+        }
+
+        boolean passed() {
+            return status.equals("0") && difference == null;
+        }
+    }
+
+    private REDUCETestRunner() {
+    }
+
+    /**
+     * Run the tests specified by the arguments following -test and return the exit status for Run-REDUCE,
+     * which is 0 if every test passed and 1 otherwise.
+     */
+    static int main(List<String> args) {
+        REDUCETestRunner runner = new REDUCETestRunner();
+        try {
+            for (Iterator<String> iterator = args.iterator(); iterator.hasNext(); ) {
+                String arg = iterator.next();
+                boolean hasValue = iterator.hasNext();
+                if (arg.equals("-version") && hasValue)
+                    runner.versions.add(iterator.next());
+                else if (arg.equals("-jobs") && hasValue)
+                    runner.jobs = Math.max(Integer.parseInt(iterator.next()), 1);
+                else if (arg.equals("-output") && hasValue)
+                    runner.outputDir = Paths.get(iterator.next());
+                else if (arg.equals("-timeout") && hasValue)
+                    runner.timeoutSeconds = Math.max(Long.parseLong(iterator.next()), 0);
+                else if (arg.equals("-baseline") && hasValue)
+                    runner.baselineFile = Paths.get(iterator.next());
+                else if (arg.equals("-saveBaseline"))
+                    runner.saveBaseline = true;
+                else if (arg.startsWith("-")) {
+                    System.err.format("Unrecognised test argument: %s.%nAllowed test arguments are: " +
+                            "-version VERSION, -jobs N, -output DIR, -timeout SECONDS, -baseline FILE " +
+                            "and -saveBaseline, followed by packages.%n", arg);
+                    return 1;
+                } else
+                    runner.packages.add(arg);
+            }
+        } catch (NumberFormatException exc) {
+            System.err.println("Invalid test argument: " + exc.getMessage());
+            return 1;
+        }
+        return runner.run();
+    }
+
+    private int run() {
+        List<Test> tests = tests();
+        if (tests == null) return 1;
+        if (tests.isEmpty()) {
+            System.err.println("No package tests to run.");
+            return 1;
+        }
+        try {
+            Files.createDirectories(outputDir);
+        } catch (IOException exc) {
+            System.err.println("Cannot create test output directory: " + exc);
+            return 1;
+        }
+
+        // Start the slowest tests first, so that the last test to finish is short:
+        Properties baseline = loadBaseline();
+        for (Test test : tests) {
+            String seconds = baseline.getProperty(test.key());
+            if (seconds != null) try {
+                test.baselineSeconds = Double.parseDouble(seconds);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        List<Test> schedule = new ArrayList<>(tests);
+        schedule.sort(Comparator.comparingDouble((Test test) -> test.baselineSeconds).reversed());
+
+        System.err.format("Running %d package test(s) with up to %d concurrent REDUCE process(es)...%n",
+                tests.size(), jobs);
+        Semaphore slots = new Semaphore(jobs);
+        CountDownLatch finished = new CountDownLatch(schedule.size());
+        for (Test test : schedule) {
+            slots.acquireUninterruptibly();
+            REDUCEIOScheduler.execute("REDUCE test " + test.key(), () -> {
+                try {
+                    runTest(test);
+                } finally {
+                    slots.release();
+                    finished.countDown();
+                }
+            });
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException exc) {
+            return 1;
+        }
+
+        int failures = 0, slowdowns = 0;
+        System.out.format("%-24s %-16s %-6s %10s %10s %10s  %s%n",
+                "Version", "Package", "Result", "Wall s", "CPU s", "Baseline s", "Notes");
+        for (Test test : tests) {
+            double seconds = test.wallNanos / 1e9;
+            String notes = !test.status.equals("0") ? "exit status " + test.status :
+                    test.difference != null ? test.difference : "";
+            if (test.baselineSeconds >= 0 && seconds > test.baselineSeconds * SLOWDOWN_RATIO &&
+                    seconds - test.baselineSeconds > SLOWDOWN_MIN_SECONDS) {
+                notes = String.format("SLOWER x%.2f", seconds / test.baselineSeconds) +
+                        (notes.isEmpty() ? "" : "; " + notes);
+                slowdowns++;
+            }
+            if (!test.passed()) failures++;
+            else if (saveBaseline) baseline.setProperty(test.key(), String.format(Locale.ROOT, "%.3f", seconds));
+            System.out.format("%-24s %-16s %-6s %10.3f %10.3f %10s  %s%n",
+                    test.version, test.pkg, test.passed() ? "pass" : "FAIL", seconds, test.cpuNanos / 1e9,
+                    test.baselineSeconds >= 0 ? String.format("%.3f", test.baselineSeconds) : "-", notes);
+        }
+        System.out.format("%d passed, %d failed, %d slower than baseline. Logs are in %s.%n",
+                tests.size() - failures, failures, slowdowns, outputDir.toAbsolutePath());
+        if (saveBaseline) saveBaseline(baseline);
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     * Return the tests to run, or null after reporting an error.
+     */
+    private List<Test> tests() {
+        List<REDUCECommand> reduceCommands = new ArrayList<>();
+        for (REDUCECommand cmd : RunREDUCE.reduceConfiguration.reduceCommandList)
+            if (versions.isEmpty() || versions.contains(cmd.version)) reduceCommands.add(cmd);
+        if (reduceCommands.isEmpty()) {
+            System.err.println(versions.isEmpty() ? "No version of REDUCE is configured." :
+                    "None of the versions of REDUCE " + versions + " is configured.");
+            return null;
+        }
+
+        Path packagesDir = Paths.get(RunREDUCE.reduceConfiguration.packagesRootDir, "packages");
+        List<String[]> entries = new ArrayList<>(); // package, test file, flags
+        try (BufferedReader reader = Files.newBufferedReader(packagesDir.resolve("package.map"))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                Matcher matcher = PACKAGE_MAP_ENTRY.matcher(line);
+                if (!matcher.lookingAt()) continue;
+                String pkg = matcher.group(1);
+                if (!packages.isEmpty() && !packages.contains(pkg)) continue;
+                Path tst = packagesDir.resolve(matcher.group(2)).resolve(pkg + ".tst");
+                if (Files.isReadable(tst) && Files.isReadable(tst.resolveSibling(pkg + ".rlg")))
+                    entries.add(new String[]{pkg, tst.toString(), matcher.group(3)});
+            }
+        } catch (IOException exc) {
+            System.err.println("Cannot read the REDUCE package map -- " + exc +
+                    "\nPlease correct 'Packages Root Dir' in the 'Configure REDUCE...' dialogue.");
+            return null;
+        }
+
+        List<Test> tests = new ArrayList<>();
+        for (REDUCECommand reduceCommand : reduceCommands) {
+            String[] command = reduceCommand.buildCommand();
+            if (command == null) return null;
+            Charset charset = reduceCommand.getCharset();
+            if (charset == null) return null;
+            String lisp = REDUCESessionImage.pslImageIndex(command) >= 0 ? "psl" : "csl";
+            String otherLisp = lisp.equals("psl") ? "csl" : "psl";
+            String versionName = reduceCommand.version.replaceAll("[^A-Za-z0-9]+", "-");
+            for (String[] entry : entries) {
+                List<String> flags = Arrays.asList(entry[2].trim().split("\\s+"));
+                if (flags.contains(otherLisp) && !flags.contains(lisp)) continue;
+                tests.add(new Test(entry[0], Paths.get(entry[1]), reduceCommand, command, charset,
+                        outputDir.resolve(entry[0] + "-" + versionName + ".log")));
+            }
+        }
+        return tests;
+    }
+
+    /**
+     * Run the specified test, comparing its output with the reference log while writing it to the test log.
+     */
+    private void runTest(Test test) {
+        // Set up REDUCE as the REDUCE test scripts do, then mark the start of the output to compare:
+        String input = "off int$ symbolic linelength 80$ symbolic(!*redefmsg := nil)$\n" +
+                "load_package " + test.pkg + "$\n" +
+                "symbolic prin2t \"" + BEGIN_MARKER + "\"$\n" +
+                // Terminate with ; not $ so that the test file is echoed, as in the .rlg:
+                "in \"" + test.tst.getFileName().toString().replace("\"", "\"\"") + "\";\n" +
+                "bye;\n";
+        try (OutputStream log = Files.newOutputStream(test.log)) {
+            RLGComparator comparator = new RLGComparator(test.rlg, test.charset, log);
+            REDUCEBatch.run(test.command, test.charset, test.tst.toAbsolutePath().getParent(), input,
+                    timeoutSeconds, comparator, test);
+            comparator.close(); // compare any final unterminated line and check that the .rlg was exhausted
+            test.difference = comparator.difference;
+        } catch (IOException exc) {
+            test.status = "error: " + exc.getMessage();
+        }
+    }
+
+    /**
+     * This class copies test output to a log and compares its lines after the begin marker
+     * with the lines of a reference log as they are output.
+     * Once the reference log is exhausted any further output, such as from bye, is ignored.
+     */
+    private static class RLGComparator extends OutputStream {
+        private final OutputStream log;
+        private final Charset charset;
+        private final BufferedReader reference;
+        private int referenceLineNumber;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private boolean comparing, firstLine, referenceEnded, closed;
+        String difference; // the first difference, or null if none
+
+        RLGComparator(Path rlg, Charset charset, OutputStream log) throws IOException {
+            this.log = log;
+            this.charset = charset;
+            // Decode as the output is decoded, replacing any malformed input:
+            reference = new BufferedReader(new StringReader(new String(Files.readAllBytes(rlg), charset)));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            log.write(bytes, offset, length);
+            for (int i = offset, start = offset; i < offset + length; i++)
+                if (bytes[i] == '\n') {
+                    line.write(bytes, start, i - start);
+                    compare(line.toString(charset));
+                    line.reset();
+                    start = i + 1;
+                } else if (i == offset + length - 1) line.write(bytes, start, i + 1 - start);
+        }
+
+        /**
+         * Compare the specified output line with the next significant line of the reference log.
+         */
+        private void compare(String outputLine) throws IOException {
+            if (!comparing) { // the marker follows the prompts for the set-up statements
+                comparing = firstLine = outputLine.endsWith(BEGIN_MARKER);
+                return;
+            }
+            if (difference != null || referenceEnded) return;
+            // The first line may follow the prompt for the in command:
+            if (firstLine) {
+                Matcher matcher = PROMPTS.matcher(outputLine);
+                if (matcher.lookingAt()) outputLine = outputLine.substring(matcher.end());
+                firstLine = false;
+            }
+            outputLine = normalise(outputLine);
+            if (outputLine == null || PROMPTS.matcher(outputLine + " ").matches()) return;
+            String referenceLine = nextReferenceLine();
+            if (referenceLine == null) referenceEnded = true;
+            else if (!outputLine.equals(referenceLine))
+                difference = String.format("line %d of the .rlg differs: expected \"%s\" but got \"%s\"",
+                        referenceLineNumber, referenceLine, outputLine);
+        }
+
+        private String nextReferenceLine() throws IOException {
+            for (String referenceLine; (referenceLine = reference.readLine()) != null; ) {
+                referenceLineNumber++;
+                if ((referenceLine = normalise(referenceLine)) != null) return referenceLine;
+            }
+            return null;
+        }
+
+        /**
+         * Return the specified line without trailing spaces, or null if it should not be compared.
+         */
+        private static String normalise(String line) {
+            line = line.replaceFirst("\\s+$", "");
+            return line.isEmpty() || IGNORED.matcher(line).matches() ? null : line;
+        }
+
+        /**
+         * Compare any final incomplete line and check that the reference log has been matched completely.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            if (line.size() > 0) compare(line.toString(charset));
+            if (difference == null && !referenceEnded) {
+                if (!comparing) difference = "the test did not start";
+                else if (nextReferenceLine() != null)
+                    difference = "the output ended before line " + referenceLineNumber + " of the .rlg";
+            }
+        }
+    }
+
+    private Properties loadBaseline() {
+        Properties baseline = new Properties();
+        try (Reader reader = Files.newBufferedReader(baselineFile)) {
+            baseline.load(reader);
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException exc) {
+            System.err.println("Cannot read the test baseline -- " + exc);
+        }
+        return baseline;
+    }
+
+    private void saveBaseline(Properties baseline) {
+        try {
+            Path dir = baselineFile.toAbsolutePath().getParent();
+            if (dir != null) Files.createDirectories(dir);
+            try (Writer writer = Files.newBufferedWriter(baselineFile)) {
+                baseline.store(writer, "Run-REDUCE package test wall-clock times in seconds");
+            }
+        } catch (IOException exc) {
+            System.err.println("Cannot save the test baseline -- " + exc);
+        }
+    }
+}
@@ -286,7 +286,7 @@ class FontSizeDialog extends JDialog implements ActionListener, ChangeListener {
         // Update the font size
         if ("OK".equals(e.getActionCommand())) {
             RunREDUCE.reduceFont = newFont;
-            RunREDUCE.reducePanel.outputTextPane.setFont(newFont);
+            RunREDUCE.reducePanel.outputDisplay.setFont(newFont);
             RunREDUCE.reducePanel.inputTextArea.setFont(newFont);
             RRPreferences.save(RRPreferences.FONTSIZE, newFontSize);
         }
@@ -2,9 +2,7 @@ package fjwright.runreduce;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import javax.swing.text.BadLocationException;
 import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
 import java.awt.*;
 import java.awt.event.ItemEvent;
 import java.io.*;
@@ -31,6 +29,9 @@ class RRMenuBar extends JMenuBar {
     static final JMenu runREDUCESubmenu = new JMenu("Run REDUCE...  ");
     static final JMenu autoRunREDUCESubmenu = new JMenu("Auto-run REDUCE...  ");
     static final JMenuItem stopREDUCEMenuItem = new JMenuItem("Stop REDUCE");
+    static final JMenuItem cancelInputMenuItem = new JMenuItem("Cancel Queued Input");
+    static final JMenuItem breakREDUCEMenuItem = new JMenuItem("Break");
+    static final JCheckBoxMenuItem fastForwardCheckBox = new JCheckBoxMenuItem("Fast-Forward Output Floods", true);
     static final JRadioButtonMenuItem singlePaneRadioButton = new JRadioButtonMenuItem("Single Pane Display");
     static final JRadioButtonMenuItem tabbedPaneRadioButton = new JRadioButtonMenuItem("Tabbed Pane Display");
     static final JMenuItem addTabMenuItem = new JMenuItem("Add Another Tab");
@@ -219,7 +220,7 @@ class RRMenuBar extends JMenuBar {
                 File file = fileChooser.getSelectedFile();
                 try (Writer out = new BufferedWriter
                         (new FileWriter(file, appendCheckBox.isSelected()))) {
-                    RunREDUCE.reducePanel.outputTextPane.write(out);
+                    RunREDUCE.reducePanel.outputDisplay.write(out);
                 } catch (IOException ioe) {
                     ioe.printStackTrace();
                 }
@@ -253,27 +254,53 @@ class RRMenuBar extends JMenuBar {
         autoRunREDUCESubmenuBuild();
 
         reduceMenu.add(stopREDUCEMenuItem);
-        stopREDUCEMenuItem.setToolTipText("Terminate REDUCE but *not* this GUI.");
+        stopREDUCEMenuItem.setToolTipText(
+                "Terminate REDUCE but *not* this GUI, forcibly if REDUCE does not stop within a few seconds.");
         stopREDUCEMenuItem.addActionListener(e -> {
-            RunREDUCE.reducePanel.sendStringToREDUCEAndEcho("bye;\n");
-            RunREDUCE.reducePanel.sendAction.setEnabled(
-                    RunREDUCE.reducePanel.runningREDUCE = false);
+            RunREDUCE.reducePanel.stopREDUCE();
             outputFileList.clear();
             // Reset enabled status of menu items:
             RunREDUCE.reducePanel.menuItemStatus.reduceStopped();
         });
 
+        reduceMenu.add(cancelInputMenuItem);
+        cancelInputMenuItem.setToolTipText("Discard any input that REDUCE has not yet read.");
+        cancelInputMenuItem.addActionListener(e -> RunREDUCE.reducePanel.cancelQueuedInput());
+
+        reduceMenu.add(breakREDUCEMenuItem);
+        breakREDUCEMenuItem.setToolTipText(RRPreferences.windowsOS ?
+                "Not available on Windows." :
+                "Interrupt the current REDUCE computation without ending the session.");
+        breakREDUCEMenuItem.addActionListener(e -> RunREDUCE.reducePanel.breakREDUCE());
+
+        JMenuItem statementTimeoutsMenuItem = new JMenuItem("Statement Timeouts...");
+        reduceMenu.add(statementTimeoutsMenuItem);
+        statementTimeoutsMenuItem.setToolTipText(
+                "Interrupt any REDUCE statement that runs for longer than a wall-clock or CPU time limit.");
+        statementTimeoutsMenuItem.addActionListener(e -> showStatementTimeoutsDialog());
+
+        JMenuItem resultCacheMenuItem = new JMenuItem("Result Cache...");
+        reduceMenu.add(resultCacheMenuItem);
+        resultCacheMenuItem.setToolTipText(
+                "Replay the saved output of slow statements that are repeated in the same context.");
+        resultCacheMenuItem.addActionListener(e -> showResultCacheDialog());
+
+        JCheckBoxMenuItem raceCancelLoserCheckBox = new JCheckBoxMenuItem("Cancel Race Losers");
+        reduceMenu.add(raceCancelLoserCheckBox);
+        raceCancelLoserCheckBox.setToolTipText(RRPreferences.windowsOS ?
+                "Not available on Windows." :
+                "When racing CSL and PSL REDUCE, interrupt CSL if it is slower and its statement is clearly pure.");
+        raceCancelLoserCheckBox.setState(RRPreferences.raceCancelLoser);
+        raceCancelLoserCheckBox.setEnabled(!RRPreferences.windowsOS);
+        raceCancelLoserCheckBox.addItemListener(e -> {
+            RRPreferences.raceCancelLoser = raceCancelLoserCheckBox.isSelected();
+            RRPreferences.save(RRPreferences.RACECANCELLOSER);
+        });
+
         JMenuItem clearDisplayMenuItem = new JMenuItem("Clear I/O Display");
         reduceMenu.add(clearDisplayMenuItem);
         clearDisplayMenuItem.setToolTipText("Clear the REDUCE Input/Output Display.");
-        clearDisplayMenuItem.addActionListener(e -> {
-            StyledDocument styledDoc = RunREDUCE.reducePanel.outputTextPane.getStyledDocument();
-            try {
-                styledDoc.remove(0, styledDoc.getLength());
-            } catch (BadLocationException ex) {
-                ex.printStackTrace();
-            }
-        });
+        clearDisplayMenuItem.addActionListener(e -> RunREDUCE.reducePanel.outputDisplay.clear());
 
         reduceMenu.addSeparator();
 
@@ -330,6 +357,21 @@ class RRMenuBar extends JMenuBar {
             fontSizeDialog.showDialog();
         });
 
+        // Create a Scrollback Limit... item in the View menu that pops up a dialogue:
+        JMenuItem scrollbackLimitMenuItem = new JMenuItem("Scrollback Limit...");
+        viewMenu.add(scrollbackLimitMenuItem);
+        scrollbackLimitMenuItem.setToolTipText("Limit the size of the I/O display." +
+                " Text removed from the top is still included in the session log.");
+        scrollbackLimitMenuItem.addActionListener(e -> showScrollbackLimitDialog());
+
+        viewMenu.add(fastForwardCheckBox);
+        fastForwardCheckBox.setToolTipText("When REDUCE outputs faster than it can be displayed," +
+                " display only the newest output in this REDUCE panel." +
+                " All output is still included in the session log.");
+        fastForwardCheckBox.addActionListener(e ->
+                RunREDUCE.reducePanel.outputQueue.fastForwardEnabled =
+                        RunREDUCE.reducePanel.menuItemStatus.fastForwardCheckBox = fastForwardCheckBox.getState());
+
         JCheckBoxMenuItem boldPromptsCheckBox = new JCheckBoxMenuItem("Bold Prompts");
         viewMenu.add(boldPromptsCheckBox);
         boldPromptsCheckBox.setToolTipText("Make input prompts bold (independently of I/O colouring).");
@@ -341,6 +383,28 @@ class RRMenuBar extends JMenuBar {
             applyBoldPromptsState();
         });
 
+        JMenu ioDisplaySubMenu = new JMenu("I/O Display");
+        viewMenu.add(ioDisplaySubMenu);
+        ioDisplaySubMenu.setToolTipText("Select the kind of I/O Display used by new REDUCE panels.");
+        ButtonGroup ioDisplayButtonGroup = new ButtonGroup();
+
+        JRadioButtonMenuItem styledIODisplayRadioButton = new JRadioButtonMenuItem("Styled Text");
+        ioDisplaySubMenu.add(styledIODisplayRadioButton);
+        ioDisplayButtonGroup.add(styledIODisplayRadioButton);
+        styledIODisplayRadioButton.setToolTipText("A standard text display, limited by the scrollback limit.");
+        styledIODisplayRadioButton.setSelected(RRPreferences.ioDisplayMode == RRPreferences.IODisplayMode.STYLED);
+        styledIODisplayRadioButton.addActionListener(e ->
+                RRPreferences.save(RRPreferences.IODISPLAYMODE, RRPreferences.IODisplayMode.STYLED));
+
+        JRadioButtonMenuItem virtualIODisplayRadioButton = new JRadioButtonMenuItem("Virtual Transcript");
+        ioDisplaySubMenu.add(virtualIODisplayRadioButton);
+        ioDisplayButtonGroup.add(virtualIODisplayRadioButton);
+        virtualIODisplayRadioButton.setToolTipText(
+                "An unlimited display for very long sessions that keeps the transcript on disk and does not wrap lines.");
+        virtualIODisplayRadioButton.setSelected(RRPreferences.ioDisplayMode == RRPreferences.IODisplayMode.VIRTUAL);
+        virtualIODisplayRadioButton.addActionListener(e ->
+                RRPreferences.save(RRPreferences.IODISPLAYMODE, RRPreferences.IODisplayMode.VIRTUAL));
+
         JMenu colouredIOSubMenu = new JMenu("I/O Colouring");
         viewMenu.add(colouredIOSubMenu);
         colouredIOSubMenu.setToolTipText("Select a text colouring style for the I/O Display, or none.");
@@ -498,16 +562,33 @@ class RRMenuBar extends JMenuBar {
 
     static void runREDUCESubmenuBuild() {
         runREDUCESubmenu.removeAll();
-        for (REDUCECommand cmd : RunREDUCE.reduceConfiguration.reduceCommandList) {
-            JMenuItem item = new JMenuItem(cmd.version);
+        for (REDUCECommand cmd : RunREDUCE.reduceConfiguration.reduceCommandList)
+            runREDUCESubmenuAdd(cmd);
+        // Versions derived from session images that have been built:
+        if (!REDUCESessionImage.imageCommandList.isEmpty()) runREDUCESubmenu.addSeparator();
+        for (REDUCECommand cmd : REDUCESessionImage.imageCommandList)
+            runREDUCESubmenuAdd(cmd);
+        // Race CSL and PSL REDUCE if both are configured:
+        REDUCECommand[] engines = REDUCERace.engines(RunREDUCE.reduceConfiguration.reduceCommandList);
+        if (engines != null) {
+            runREDUCESubmenu.addSeparator();
+            JMenuItem item = new JMenuItem("Race " + engines[0].version + " and " + engines[1].version);
             runREDUCESubmenu.add(item);
-            item.addActionListener(e -> {
-                // Run REDUCE.  (A direct call hangs the GUI!)
-                SwingUtilities.invokeLater(() -> RunREDUCE.reducePanel.run(cmd));
-            });
+            item.setToolTipText("Send all input to both versions and display whichever result arrives first.");
+            item.addActionListener(e ->
+                    SwingUtilities.invokeLater(() -> RunREDUCE.reducePanel.race(engines[0], engines[1])));
         }
     }
 
+    private static void runREDUCESubmenuAdd(REDUCECommand cmd) {
+        JMenuItem item = new JMenuItem(cmd.version);
+        runREDUCESubmenu.add(item);
+        item.addActionListener(e -> {
+            // Run REDUCE.  (A direct call hangs the GUI!)
+            SwingUtilities.invokeLater(() -> RunREDUCE.reducePanel.run(cmd));
+        });
+    }
+
     static void autoRunREDUCESubmenuBuild() {
         autoRunREDUCESubmenu.removeAll();
         ButtonGroup autoRunButtonGroup = new ButtonGroup();
@@ -551,9 +632,66 @@ class RRMenuBar extends JMenuBar {
         reduceConfigDialog.showDialog();
     }
 
+    static void showScrollbackLimitDialog() {
+        JSpinner limitSpinner = new JSpinner(
+                new SpinnerNumberModel(RRPreferences.scrollbackLimit, 0, 10_000_000, 1000));
+        JComboBox<String> unitComboBox = new JComboBox<>(new String[]{"lines", "KB"});
+        unitComboBox.setSelectedIndex(RRPreferences.scrollbackUnit.ordinal());
+        JPanel limitPane = new JPanel();
+        limitPane.add(limitSpinner);
+        limitPane.add(unitComboBox);
+        Object[] message = {"Maximum size of each I/O display, or 0 for unlimited.",
+                "Text removed from the top is still included in the session log.",
+                limitPane};
+        if (JOptionPane.showConfirmDialog(frame, message, "Scrollback Limit...",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION)
+            RRPreferences.save(RRPreferences.SCROLLBACKLIMIT, limitSpinner.getValue(),
+                    RRPreferences.ScrollbackUnit.values()[unitComboBox.getSelectedIndex()]);
+    }
+
+    static void showStatementTimeoutsDialog() {
+        JSpinner timeoutSpinner = new JSpinner(
+                new SpinnerNumberModel(RRPreferences.statementTimeout, 0, 1_000_000, 10));
+        JSpinner cpuTimeoutSpinner = new JSpinner(
+                new SpinnerNumberModel(RRPreferences.statementCPUTimeout, 0, 1_000_000, 10));
+        JPanel timeoutsPane = new JPanel(new GridLayout(2, 2, 5, 5));
+        timeoutsPane.add(new JLabel("Wall-clock seconds"));
+        timeoutsPane.add(timeoutSpinner);
+        timeoutsPane.add(new JLabel("CPU seconds"));
+        timeoutsPane.add(cpuTimeoutSpinner);
+        Object[] message = {"Interrupt any REDUCE statement that runs for longer than these limits,",
+                "as Break does, so that the session continues.  0 means unlimited.",
+                timeoutsPane};
+        if (JOptionPane.showConfirmDialog(frame, message, "Statement Timeouts...",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION)
+            RRPreferences.save(RRPreferences.STATEMENTTIMEOUT, timeoutSpinner.getValue(),
+                    cpuTimeoutSpinner.getValue());
+    }
+
+    static void showResultCacheDialog() {
+        JCheckBox enableCheckBox = new JCheckBox("Replay cached results", RRPreferences.resultCache);
+        JSpinner sizeSpinner = new JSpinner(
+                new SpinnerNumberModel(RRPreferences.resultCacheSize, 1, 1_000_000, 10));
+        JCheckBox clearCheckBox = new JCheckBox("Clear the cache");
+        JPanel sizePane = new JPanel(new GridLayout(1, 2, 5, 5));
+        sizePane.add(new JLabel("Maximum size in MB"));
+        sizePane.add(sizeSpinner);
+        Object[] message = {"Save the output of each slow, clearly pure statement and replay it instantly,",
+                "marked as cached, when the statement is repeated in the same session context.",
+                "A replayed statement is not evaluated, so it does not update ws or the prompt number.",
+                enableCheckBox, sizePane,
+                "The cache currently holds " + REDUCEResultCache.describe() + ".", clearCheckBox};
+        if (JOptionPane.showConfirmDialog(frame, message, "Result Cache...",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+            RRPreferences.save(RRPreferences.RESULTCACHE, enableCheckBox.isSelected(), sizeSpinner.getValue());
+            if (clearCheckBox.isSelected()) REDUCEResultCache.clear();
+            else REDUCEIOScheduler.execute("REDUCE result cache", REDUCEResultCache::trim);
+        }
+    }
+
     static void applyBoldPromptsState() {
-        StyleConstants.setBold(REDUCEOutputThread.promptAttributeSet, RRPreferences.boldPromptsState);
-        StyleConstants.setBold(REDUCEOutputThread.algebraicPromptAttributeSet, RRPreferences.boldPromptsState);
-        StyleConstants.setBold(REDUCEOutputThread.symbolicPromptAttributeSet, RRPreferences.boldPromptsState);
+        StyleConstants.setBold(REDUCEOutputReader.promptAttributeSet, RRPreferences.boldPromptsState);
+        StyleConstants.setBold(REDUCEOutputReader.algebraicPromptAttributeSet, RRPreferences.boldPromptsState);
+        StyleConstants.setBold(REDUCEOutputReader.symbolicPromptAttributeSet, RRPreferences.boldPromptsState);
     }
 }
@@ -0,0 +1,402 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import javax.swing.text.AttributeSet;
+import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This class provides a tap that records the exact bytes read from the REDUCE output pipe,
+ * chunk by chunk, with a nanosecond time stamp per chunk, in a binary ring file,
+ * which keeps the most recent output when it is full.
+ * It is enabled by the -debugOutput argument.
+ * The output reader only copies each chunk to a queue; a background thread writes the file,
+ * so recording perturbs the timing of the output pipeline as little as possible.
+ * <p>
+ * The main method provides an offline viewer, which lists the recorded chunks,
+ * and a replay tool, which feeds them through the REDUCE output pipeline with the same chunk boundaries
+ * and prints the resulting styled text, so that chunk-boundary bugs can be reproduced deterministically.
+ * <p>
+ * The file consists of a header followed by a circular data region of records, each consisting of
+ * the int length of the chunk, a flags byte, the long time stamp relative to the start of recording,
+ * and the bytes of the chunk.
+ * A length of -1, or too little space for a length, marks the end of the data before it wraps round.
+ */
+class RawOutputTap extends Thread {
+    private static final long MAGIC = 0x5252_5441_5030_3031L; // "RRTAP001"
+    private static final int CHARSET_NAME_LENGTH = 32;
+    // Header layout:
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 16;    // offset in the data region of the next record
+    private static final int TAIL_OFFSET = 24;    // offset in the data region of the oldest record
+    private static final int COUNT_OFFSET = 32;   // number of records in the file
+    private static final int START_OFFSET = 40;   // System.currentTimeMillis() when recording started
+    private static final int CHARSET_OFFSET = 48;
+    private static final int HEADER_LENGTH = CHARSET_OFFSET + CHARSET_NAME_LENGTH;
+    private static final int RECORD_HEADER_LENGTH = 4 + 1 + 8;
+    // Record flags:
+    static final int END_OF_BURST = 1; // no more output was immediately available after this chunk
+    static final int DROPPED = 2;      // chunks were dropped before this one because the queue was full
+
+    static final int DEFAULT_CAPACITY = 64 << 20;
+    private static final int QUEUE_CAPACITY = 4096; // chunks
+
+    private final Path path;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final long startNanoTime = System.nanoTime();
+    private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final Chunk END = new Chunk(0, 0, new byte[0], 0);
+    private boolean dropped; // output thread only
+    private int head, tail;
+    private long count;
+
+    private static class Chunk {
+        final long nanoTime;
+        final int flags;
+        final byte[] bytes;
+        final int length;
+
+        Chunk(long nanoTime, int flags, byte[] bytes, int length) {
+            this.nanoTime = nanoTime;
+            this.flags = flags;
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Create a tap that records to a new ring file in the temporary directory and start its writer thread.
+     * The file is not deleted when Run-REDUCE exits.
+     */
+    static RawOutputTap start(Charset charset) throws IOException {
+        String name = "Run-REDUCE-output-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".tap";
+        RawOutputTap tap = new RawOutputTap(Paths.get(System.getProperty("java.io.tmpdir"), name),
+                DEFAULT_CAPACITY, charset);
+        tap.start();
+        System.err.println("Recording raw REDUCE output in " + tap.path);
+        return tap;
+    }
+
+    RawOutputTap(Path path, int capacity, Charset charset) throws IOException {
+        super("REDUCE output tap");
+        setDaemon(true);
+        this.path = path;
+        this.capacity = capacity;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + (long) capacity);
+        }
+        map.putLong(0, MAGIC);
+        map.putLong(CAPACITY_OFFSET, capacity);
+        map.putLong(START_OFFSET, System.currentTimeMillis());
+        byte[] charsetName = charset.name().getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < Math.min(charsetName.length, CHARSET_NAME_LENGTH); i++)
+            map.put(CHARSET_OFFSET + i, charsetName[i]);
+        updateHeader();
+    }
+
+    /**
+     * Record a copy of length bytes of the specified array starting at offset.
+     * This method should be called by the REDUCE output reader immediately after each read.
+     * If the writer thread has fallen too far behind then the chunk is dropped.
+     */
+    void record(byte[] bytes, int offset, int length, boolean endOfBurst) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        int flags = (endOfBurst ? END_OF_BURST : 0) | (dropped ? DROPPED : 0);
+        dropped = !queue.offer(new Chunk(System.nanoTime() - startNanoTime, flags, copy, length));
+    }
+
+    /**
+     * Stop recording after all chunks already recorded have been written.
+     */
+    void close() {
+        try {
+            queue.put(END);
+        } catch (InterruptedException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    public void run() {
+        try {
+            for (Chunk chunk; (chunk = queue.take()) != END; ) write(chunk);
+        } catch (InterruptedException exc) {
+            exc.printStackTrace();
+        }
+        map.force();
+    }
+
+    private void write(Chunk chunk) {
+        int n = RECORD_HEADER_LENGTH + chunk.length;
+        if (n > capacity) return;
+        if (capacity - head < n) { // wrap round
+            // Discard the oldest records, which lie between the head and the end of the data region:
+            while (count > 0 && tail >= head) discardTail();
+            if (capacity - head >= 4) map.putInt(HEADER_LENGTH + head, -1);
+            head = 0;
+        }
+        // Discard the oldest records that this record would overwrite:
+        while (count > 0 && tail >= head && tail < head + n) discardTail();
+        if (count == 0) tail = head;
+        int position = HEADER_LENGTH + head;
+        map.putInt(position, chunk.length);
+        map.put(position + 4, (byte) chunk.flags);
+        map.putLong(position + 5, chunk.nanoTime);
+        ByteBuffer data = map.duplicate();
+        data.position(position + RECORD_HEADER_LENGTH);
+        data.put(chunk.bytes, 0, chunk.length);
+        head += n;
+        count++;
+        updateHeader();
+    }
+
+    /**
+     * Discard the oldest record, or move the tail to the start of the data region if it is at the end.
+     */
+    private void discardTail() {
+        int length = capacity - tail < 4 ? -1 : map.getInt(HEADER_LENGTH + tail);
+        if (length < 0) tail = 0;
+        else {
+            tail += RECORD_HEADER_LENGTH + length;
+            count--;
+        }
+    }
+
+    private void updateHeader() {
+        map.putLong(HEAD_OFFSET, head);
+        map.putLong(TAIL_OFFSET, tail);
+        map.putLong(COUNT_OFFSET, count);
+    }
+
+    /**
+     * This class reads the records of a tap file, oldest first.
+     */
+    static class Recording {
+        final long startMillis;
+        final Charset charset;
+        final List<Long> nanoTimes = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        final List<byte[]> chunks = new ArrayList<>();
+
+        /**
+         * Create an empty recording, e.g. of synthetic output, to which chunks can be added.
+         */
+        Recording(Charset charset) {
+            startMillis = System.currentTimeMillis();
+            this.charset = charset;
+        }
+
+        Recording(Path path) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buffer.capacity() < HEADER_LENGTH || buffer.getLong(0) != MAGIC)
+                throw new IOException(path + " is not a Run-REDUCE output tap file");
+            int capacity = (int) buffer.getLong(CAPACITY_OFFSET);
+            int position = (int) buffer.getLong(TAIL_OFFSET);
+            long count = buffer.getLong(COUNT_OFFSET);
+            startMillis = buffer.getLong(START_OFFSET);
+            byte[] charsetName = new byte[CHARSET_NAME_LENGTH];
+            buffer.position(CHARSET_OFFSET);
+            buffer.get(charsetName);
+            charset = Charset.forName(new String(charsetName, StandardCharsets.US_ASCII).trim());
+            for (long i = 0; i < count; ) {
+                int length = capacity - position < 4 ? -1 : buffer.getInt(HEADER_LENGTH + position);
+                if (length < 0) {
+                    position = 0;
+                    continue;
+                }
+                byte[] chunk = new byte[length];
+                buffer.position(HEADER_LENGTH + position + RECORD_HEADER_LENGTH);
+                buffer.get(chunk);
+                add(chunk, buffer.getLong(HEADER_LENGTH + position + 5), buffer.get(HEADER_LENGTH + position + 4));
+                position += RECORD_HEADER_LENGTH + length;
+                i++;
+            }
+        }
+
+        void add(byte[] chunk, long nanoTime, int flags) {
+            chunks.add(chunk);
+            nanoTimes.add(nanoTime);
+            this.flags.add(flags);
+        }
+
+        /**
+         * Return an input stream that returns each recorded chunk from a separate read
+         * and reports no more available input after each chunk that ended a burst of output,
+         * as the REDUCE output pipe did.
+         */
+        InputStream replayStream() {
+            return new InputStream() {
+                private int index = -1; // of the current chunk
+                private int position;   // in the current chunk
+
+                private int remaining() {
+                    return index < 0 ? 0 : chunks.get(index).length - position;
+                }
+
+                private boolean nextChunk() {
+                    while (remaining() == 0) {
+                        if (index + 1 == chunks.size()) return false;
+                        index++;
+                        position = 0;
+                    }
+                    return true;
+                }
+
+                public int read() {
+                    return nextChunk() ? chunks.get(index)[position++] & 0xFF : -1;
+                }
+
+                public int read(byte[] b, int off, int len) {
+                    if (!nextChunk()) return -1;
+                    len = Math.min(len, remaining());
+                    System.arraycopy(chunks.get(index), position, b, off, len);
+                    position += len;
+                    return len;
+                }
+
+                public int available() {
+                    if (remaining() > 0) return remaining();
+                    boolean endOfBurst = index < 0 || (flags.get(index) & END_OF_BURST) != 0;
+                    return endOfBurst || index + 1 == chunks.size() ? 0 : chunks.get(index + 1).length;
+                }
+            };
+        }
+    }
+
+    /**
+     * Return the specified text with control characters other than newline shown visibly,
+     * e.g. ^A as |^A|, which is how -debugOutput used to show them.
+     */
+    static String showControls(CharSequence text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isISOControl(c) && c != '\n')
+                sb.append('|').append('^').append((char) (c < 32 ? c + 64 : '?')).append('|');
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * This class provides an I/O display that prints styled runs of text, for replaying tap files.
+     */
+    private static class PrintingIODisplay implements IODisplay {
+        private final JPanel component = new JPanel();
+
+        public JComponent getComponent() {
+            return component;
+        }
+
+        public void append(CharSequence text, int start, int end, AttributeSet attributes) {
+            System.out.print("{" + styleName(attributes) + "}" + showControls(text.subSequence(start, end)));
+        }
+
+        private static String styleName(AttributeSet attributes) {
+            if (attributes == null) return "plain";
+            if (attributes == REDUCEOutputReader.algebraicPromptAttributeSet) return "algebraic prompt";
+            if (attributes == REDUCEOutputReader.symbolicPromptAttributeSet) return "symbolic prompt";
+            if (attributes == REDUCEOutputReader.algebraicOutputAttributeSet) return "algebraic output";
+            if (attributes == REDUCEOutputReader.symbolicOutputAttributeSet) return "symbolic output";
+            if (attributes == REDUCEOutputReader.promptAttributeSet) return "prompt";
+            return attributes.toString();
+        }
+
+        public void skip(CharSequence text, int start, int end) {
+            System.out.print("{skipped}" + showControls(text.subSequence(start, end)));
+        }
+
+        public void appendDone() {
+        }
+
+        public boolean endsWith(String s) {
+            return false;
+        }
+
+        public void removeTail(int n) {
+        }
+
+        public void write(Writer out) {
+        }
+
+        public void clear() {
+        }
+
+        public void dispose() {
+        }
+
+        public void setFont(Font font) {
+        }
+
+        public void setBackground(Color color) {
+        }
+    }
+
+    /**
+     * View or replay a tap file:
+     * <pre>
+     * view FILE
+     * replay FILE [NONE|MODAL|REDFRONT [bold]]
+     * </pre>
+     */
+    public static void main(String... args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("view") || args[0].equals("replay"))) {
+            System.err.println("Usage: view FILE | replay FILE [NONE|MODAL|REDFRONT [bold]]");
+            System.exit(1);
+        }
+        Recording recording = new Recording(Paths.get(args[1]));
+        if (args[0].equals("view")) {
+            System.out.format("Recorded %s, %d chunks, %s%n",
+                    new Date(recording.startMillis), recording.chunks.size(), recording.charset);
+            long previous = recording.nanoTimes.isEmpty() ? 0 : recording.nanoTimes.get(0);
+            for (int i = 0; i < recording.chunks.size(); i++) {
+                long nanoTime = recording.nanoTimes.get(i);
+                int flags = recording.flags.get(i);
+                byte[] chunk = recording.chunks.get(i);
+                System.out.format("#%d  %.6f s  +%.3f ms  %d bytes%s%s%n", i, nanoTime / 1e9,
+                        (nanoTime - previous) / 1e6, chunk.length,
+                        (flags & END_OF_BURST) != 0 ? "  end of burst" : "",
+                        (flags & DROPPED) != 0 ? "  CHUNKS DROPPED BEFORE THIS" : "");
+                System.out.println(showControls(new String(chunk, recording.charset)));
+                previous = nanoTime;
+            }
+        } else {
+            RRPreferences.colouredIOState = args.length > 2 ?
+                    RRPreferences.ColouredIO.valueOf(args[2]) : RRPreferences.ColouredIO.NONE;
+            RRPreferences.boldPromptsState = args.length > 3 && args[3].equals("bold");
+            // Process the whole recording on the event-dispatching thread, which then drains the queue,
+            // so that the output does not depend on when the queue is drained:
+            SwingUtilities.invokeAndWait(() -> {
+                REDUCEOutputQueue outputQueue = new REDUCEOutputQueue(new PrintingIODisplay());
+                outputQueue.fastForwardEnabled = false;
+                PromptDetector promptDetector = new PromptDetector();
+                new REDUCEOutputReader(recording.replayStream(), recording.charset, outputQueue, promptDetector).run();
+                outputQueue.drain();
+                System.out.format("%n{end: prompt %b, number %d, mode %s, question %b}%n",
+                        promptDetector.isPrompt(), promptDetector.getPromptNumber(),
+                        promptDetector.getMode(), promptDetector.isQuestionPrompt());
+            });
+            System.exit(0);
+        }
+    }
+}
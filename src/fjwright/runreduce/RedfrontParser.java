@@ -0,0 +1,64 @@
+package fjwright.runreduce;
+
+import javax.swing.text.AttributeSet;
+
+/**
+ * This class parses the markup output by the redfront package, which uses ASCII control characters:
+ * ^A prompt ^B input
+ * ^C algebraic-mode output ^D
+ * where ^A = \u0001, etc. ^A/^B and ^C/^D should always be paired.
+ * Prompts are red, algebraic-mode output is blue,
+ * but any other output (echoed input or symbolic-mode output) is not coloured.
+ * <p>
+ * The parser is a character-driven state machine whose only state is the style of the current run,
+ * so REDUCE output may be split between chunks anywhere, including between a pair of markers.
+ * It queues runs of text directly from the caller's buffer, without creating intermediate strings,
+ * and also removes carriage returns.
+ */
+class RedfrontParser {
+    static final char PROMPT_START = '\u0001';
+    static final char PROMPT_END = '\u0002';
+    static final char ALG_OUTPUT_START = '\u0003';
+    static final char ALG_OUTPUT_END = '\u0004';
+
+    private final REDUCEOutputQueue outputQueue;
+    private AttributeSet attributes; // of the current run, null for uncoloured text
+
+    RedfrontParser(REDUCEOutputQueue outputQueue) {
+        this.outputQueue = outputQueue;
+    }
+
+    /**
+     * Parse length characters of the specified array starting at offset and queue them for display.
+     */
+    void parse(char[] chars, int offset, int length) {
+        int end = offset + length, runStart = offset;
+        for (int i = offset; i < end; i++) {
+            char c = chars[i];
+            if (c > '\r') continue; // fast path for all printable characters
+            AttributeSet nextAttributes;
+            switch (c) {
+                case PROMPT_START:
+                    nextAttributes = REDUCEOutputReader.algebraicPromptAttributeSet;
+                    break;
+                case ALG_OUTPUT_START:
+                    nextAttributes = REDUCEOutputReader.algebraicOutputAttributeSet;
+                    break;
+                case PROMPT_END:
+                case ALG_OUTPUT_END:
+                    nextAttributes = null;
+                    break;
+                case '\r':
+                    nextAttributes = attributes;
+                    break;
+                default:
+                    continue;
+            }
+            // Queue the run before the marker (or CR) and skip the marker:
+            outputQueue.append(chars, runStart, i - runStart, attributes);
+            attributes = nextAttributes;
+            runStart = i + 1;
+        }
+        outputQueue.append(chars, runStart, end - runStart, attributes);
+    }
+}
@@ -14,6 +14,8 @@ package fjwright.runreduce;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * This is the main class that sets up and runs the application.
@@ -28,10 +30,7 @@ public class RunREDUCE {
     static boolean enableTabbedPaneChangeListener = true;
     static final REDUCEPanelMouseListener REDUCE_PANEL_MOUSE_LISTENER = new REDUCEPanelMouseListener();
 
-    static final Dimension SCREEN_SIZE = Toolkit.getDefaultToolkit().getScreenSize();
-    // Set the main window to 2/3 the linear dimension of the screen initially:
-    static Dimension initialFrameSize = // reset to null once used!
-            new Dimension((SCREEN_SIZE.width * 2) / 3, (SCREEN_SIZE.height * 2) / 3);
+    static Dimension initialFrameSize; // reset to null once used!
 
     static REDUCEConfigurationDefault reduceConfigurationDefault;
     static REDUCEConfiguration reduceConfiguration;
@@ -41,6 +40,11 @@ public class RunREDUCE {
      * For thread safety, this method should be invoked from the event-dispatching thread.
      **/
     private static void createAndShowGUI() {
+        // Set the main window to 2/3 the linear dimension of the screen initially.
+        // (The screen size is not read when this class is loaded so that its other members work headless.)
+        Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+        initialFrameSize = new Dimension((screenSize.width * 2) / 3, (screenSize.height * 2) / 3);
+
         // Create and set up the window:
         frame = new JFrame("Run-REDUCE");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -70,6 +74,11 @@ public class RunREDUCE {
 
         // Display the window:
         frame.setVisible(true);
+
+        // Start warming up idle REDUCE processes for the versions that have a pool:
+        REDUCEProcessPool.configure(reduceConfiguration.reduceCommandList);
+        // Register or start building session images for the versions that have an image script:
+        REDUCESessionImage.configure(reduceConfiguration.reduceCommandList);
     }
 
     static void useSplitPane(boolean enable) {
@@ -85,7 +94,9 @@ public class RunREDUCE {
         } else { // Revert to single pane.
             splitPane.getLeftComponent().removeMouseListener(REDUCE_PANEL_MOUSE_LISTENER);
             splitPane.getRightComponent().removeMouseListener(REDUCE_PANEL_MOUSE_LISTENER);
-            // Retain the reducePanel from the selected tab if possible:
+            // Retain the reducePanel from the selected tab if possible and discard the other:
+            ((REDUCEPanel) (splitPane.getLeftComponent() == reducePanel ?
+                    splitPane.getRightComponent() : splitPane.getLeftComponent())).close();
             frame.remove(splitPane);
             splitPane = null; // release resources
             frame.add(reducePanel);
@@ -137,8 +148,12 @@ public class RunREDUCE {
             tabbedPane.setTabComponentAt(0, new ButtonTabComponent(tabbedPane));
             tabbedPane.addTab("+", null, null, "Add a new REDUCE tab.");
         } else { // Revert to single pane.
-            // Retain the reducePanel from the selected tab:
+            // Retain the reducePanel from the selected tab and discard the others:
             reducePanel = (REDUCEPanel) tabbedPane.getSelectedComponent();
+            for (int i = 0; i < tabbedPane.getTabCount(); i++) {
+                Component c = tabbedPane.getComponentAt(i);
+                if (c instanceof REDUCEPanel && c != reducePanel) ((REDUCEPanel) c).close();
+            }
             frame.remove(tabbedPane);
             tabbedPane = null; // release resources
             frame.add(reducePanel);
@@ -169,7 +184,8 @@ public class RunREDUCE {
         enableTabbedPaneChangeListener = false;
         if (tabbedPane.getTabCount() > 2) {
             int selectedIndex = tabbedPane.getSelectedIndex();
-            // Remove both tab and content:
+            // Stop REDUCE in the tab and remove both tab and content:
+            ((REDUCEPanel) tabbedPane.getComponentAt(selectedIndex)).close();
             tabbedPane.remove(selectedIndex);
             if (selectedIndex == tabbedPane.getTabCount() - 1)
                 tabbedPane.setSelectedIndex(selectedIndex - 1);
@@ -183,11 +199,17 @@ public class RunREDUCE {
     }
 
     static void errorMessageDialog(Object message, String title) {
+        if (batch) { // there is no GUI
+            System.err.println(title + ": " + message);
+            return;
+        }
         JOptionPane.showMessageDialog(frame, message, title, JOptionPane.ERROR_MESSAGE);
     }
 
     // Run-time argument processing:
-    static boolean debugPlatform, debugOutput;
+    static boolean debugPlatform, debugOutput, batch;
+    private static final String batchArg = "-batch";
+    private static final String testArg = "-test";
     private static final String debugPlatformArg = "-debugPlatform";
     private static final String debugOutputArg = "-debugOutput";
     private static final String lfNativeArg = "-lfNative";
@@ -195,8 +217,19 @@ public class RunREDUCE {
 
     public static void main(String... args) {
         String lookAndFeel = null;
-        for (String arg : args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
             switch (arg) {
+                case batchArg:
+                case testArg:
+                    // Run REDUCE on the files or package tests specified by the remaining arguments without a GUI:
+                    batch = true;
+                    reduceConfigurationDefault = new REDUCEConfigurationDefault();
+                    reduceConfiguration = new REDUCEConfiguration();
+                    List<String> batchArgs = Arrays.asList(args).subList(i + 1, args.length);
+                    System.exit(arg.equals(batchArg) ?
+                            REDUCEBatch.main(batchArgs) : REDUCETestRunner.main(batchArgs));
+                    return;
                 case debugPlatformArg:
                     debugPlatform = true;
                     break;
@@ -210,8 +243,8 @@ public class RunREDUCE {
                     lookAndFeel = "com.sun.java.swing.plaf.motif.MotifLookAndFeel";
                     break;
                 default:
-                    System.err.format("Unrecognised argument: %s.\nAllowed arguments are: %s, %s, %s and %s.",
-                            arg, debugPlatformArg, debugOutputArg, lfNativeArg, lfMotifArg);
+                    System.err.format("Unrecognised argument: %s.\nAllowed arguments are: %s, %s, %s, %s, %s and %s.",
+                            arg, debugPlatformArg, debugOutputArg, lfNativeArg, lfMotifArg, batchArg, testArg);
             }
         }
 
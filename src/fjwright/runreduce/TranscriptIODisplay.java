@@ -0,0 +1,545 @@
+package fjwright.runreduce;
+
+import javax.swing.*;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.StyleConstants;
+import java.awt.*;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.*;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class provides the virtual I/O display, intended for very long sessions.
+ * The whole session transcript and its style runs are appended to memory-mapped files,
+ * and only the lines in the visible window are ever laid out and painted.
+ * Lines are not wrapped, and the display font is assumed to be monospaced.
+ */
+class TranscriptIODisplay extends JPanel implements IODisplay {
+    private final MappedTranscript transcript;
+    private final TranscriptView view;
+    private final JScrollBar verticalScrollBar = new JScrollBar(JScrollBar.VERTICAL);
+    private final JScrollBar horizontalScrollBar = new JScrollBar(JScrollBar.HORIZONTAL);
+    private boolean disposed;
+
+    TranscriptIODisplay() {
+        super(new BorderLayout());
+        transcript = new MappedTranscript();
+        view = new TranscriptView();
+        view.setFont(RunREDUCE.reduceFont);
+        add(view, BorderLayout.CENTER);
+        add(verticalScrollBar, BorderLayout.LINE_END);
+        add(horizontalScrollBar, BorderLayout.PAGE_END);
+        setBorder(UIManager.getBorder("ScrollPane.border"));
+        verticalScrollBar.addAdjustmentListener(e -> view.repaint());
+        horizontalScrollBar.addAdjustmentListener(e -> view.repaint());
+        view.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                updateScrollBars(false);
+            }
+        });
+    }
+
+    public JComponent getComponent() {
+        return this;
+    }
+
+    public void append(CharSequence text, int start, int end, AttributeSet attributes) {
+        if (disposed) return; // output can still arrive from a REDUCE process being stopped
+        transcript.append(text, start, end, TranscriptStyles.code(attributes));
+    }
+
+    public void appendDone() {
+        updateScrollBars(true);
+        view.repaint();
+    }
+
+    /**
+     * Update the scroll bar ranges after the transcript or the view size changes.
+     * If followEnd and the last line was visible then scroll to keep it visible.
+     */
+    private void updateScrollBars(boolean followEnd) {
+        int rows = Math.max(view.getRows(), 1);
+        int lines = (int) Math.min(transcript.getLineCount(), Integer.MAX_VALUE - rows);
+        boolean atEnd = verticalScrollBar.getValue() + verticalScrollBar.getVisibleAmount() >=
+                verticalScrollBar.getMaximum();
+        verticalScrollBar.setValues(
+                followEnd && atEnd ? Math.max(lines - rows, 0) : verticalScrollBar.getValue(),
+                rows, 0, Math.max(lines, rows));
+        verticalScrollBar.setBlockIncrement(rows);
+        int columns = Math.max(view.getColumns(), 1);
+        horizontalScrollBar.setValues(horizontalScrollBar.getValue(), columns, 0,
+                Math.max(transcript.getMaxLineLength() + 1, columns));
+        horizontalScrollBar.setBlockIncrement(columns);
+    }
+
+    private void scrollToLine(long line) {
+        verticalScrollBar.setValue((int) Math.min(line, Integer.MAX_VALUE));
+    }
+
+    public void skip(CharSequence text, int start, int end) {
+        // Only the visible lines are ever rendered, so there is no need to skip anything:
+        append(text, start, end, null);
+    }
+
+    public boolean endsWith(String s) {
+        if (disposed) return false;
+        long length = transcript.getLength();
+        int n = s.length();
+        if (length < n) return false;
+        for (int i = 0; i < n; i++)
+            if (transcript.charAt(length - n + i) != s.charAt(i)) return false;
+        return true;
+    }
+
+    public void removeTail(int n) {
+        if (disposed) return;
+        transcript.truncate(transcript.getLength() - n);
+        view.clearSelection();
+        appendDone();
+    }
+
+    public void write(Writer out) throws IOException {
+        if (disposed) return;
+        char[] buffer = new char[8192];
+        long length = transcript.getLength();
+        for (long offset = 0; offset < length; offset += buffer.length) {
+            int n = (int) Math.min(buffer.length, length - offset);
+            for (int i = 0; i < n; i++) buffer[i] = transcript.charAt(offset + i);
+            out.write(buffer, 0, n);
+        }
+    }
+
+    public void clear() {
+        if (disposed) return;
+        transcript.truncate(0);
+        view.clearSelection();
+        verticalScrollBar.setValue(0);
+        horizontalScrollBar.setValue(0);
+        appendDone();
+    }
+
+    public void dispose() {
+        if (disposed) return;
+        disposed = true;
+        transcript.close();
+    }
+
+    @Override
+    public void setFont(Font font) {
+        super.setFont(font);
+        if (view != null) {
+            view.setFont(font);
+            updateScrollBars(true);
+            view.repaint();
+        }
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        super.setBackground(color);
+        if (view != null) view.setBackground(color);
+    }
+
+    /**
+     * This component paints the lines of the transcript in the visible window
+     * and supports selecting and copying text.
+     */
+    private class TranscriptView extends JComponent {
+        private long selectionAnchor = -1, selectionDot = -1; // transcript offsets
+        private Font boldFont;
+        private char[] lineBuffer = new char[256];
+
+        TranscriptView() {
+            setOpaque(true);
+            setBackground(Color.white);
+            setFocusable(true);
+            setCursor(Cursor.getPredefinedCursor(Cursor.TEXT_CURSOR));
+
+            MouseAdapter mouseAdapter = new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    requestFocusInWindow();
+                    long offset = offsetAt(e.getPoint());
+                    if (!e.isShiftDown() || selectionAnchor < 0) selectionAnchor = offset;
+                    selectionDot = offset;
+                    repaint();
+                }
+
+                @Override
+                public void mouseDragged(MouseEvent e) {
+                    selectionDot = offsetAt(e.getPoint());
+                    // Scroll if dragging outside the view:
+                    if (e.getY() < 0) scrollToLine(verticalScrollBar.getValue() - 1);
+                    else if (e.getY() > getHeight())
+                        scrollToLine(verticalScrollBar.getValue() + 1);
+                    repaint();
+                }
+
+                @Override
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    scrollToLine(verticalScrollBar.getValue() + 3L * e.getWheelRotation());
+                }
+            };
+            addMouseListener(mouseAdapter);
+            addMouseMotionListener(mouseAdapter);
+            addMouseWheelListener(mouseAdapter);
+
+            InputMap inputMap = getInputMap();
+            ActionMap actionMap = getActionMap();
+            inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK), "copy");
+            actionMap.put("copy", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) {
+                    copySelection();
+                }
+            });
+            inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_A, InputEvent.CTRL_DOWN_MASK), "selectAll");
+            actionMap.put("selectAll", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) {
+                    selectionAnchor = 0;
+                    selectionDot = transcript.getLength();
+                    repaint();
+                }
+            });
+            inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_HOME, InputEvent.CTRL_DOWN_MASK), "home");
+            actionMap.put("home", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) {
+                    scrollToLine(0);
+                }
+            });
+            inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_END, InputEvent.CTRL_DOWN_MASK), "end");
+            actionMap.put("end", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) {
+                    scrollToLine(verticalScrollBar.getMaximum());
+                }
+            });
+            inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_UP, 0), "pageUp");
+            actionMap.put("pageUp", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) {
+                    scrollToLine(verticalScrollBar.getValue() - (long) getRows());
+                }
+            });
+            inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_DOWN, 0), "pageDown");
+            actionMap.put("pageDown", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) {
+                    scrollToLine(verticalScrollBar.getValue() + (long) getRows());
+                }
+            });
+        }
+
+        @Override
+        public void setFont(Font font) {
+            super.setFont(font);
+            boldFont = font.deriveFont(Font.BOLD);
+        }
+
+        int getRows() {
+            return getHeight() / getFontMetrics(getFont()).getHeight();
+        }
+
+        int getColumns() {
+            return getWidth() / getFontMetrics(getFont()).charWidth('m');
+        }
+
+        void clearSelection() {
+            selectionAnchor = selectionDot = -1;
+        }
+
+        /**
+         * Return the transcript offset of the character boundary nearest to point.
+         */
+        private long offsetAt(Point point) {
+            FontMetrics fm = getFontMetrics(getFont());
+            long line = verticalScrollBar.getValue() + (long) Math.floorDiv(point.y, fm.getHeight());
+            line = Math.max(0, Math.min(line, transcript.getLineCount() - 1));
+            long column = horizontalScrollBar.getValue() +
+                    Math.max(0, Math.round((double) point.x / fm.charWidth('m')));
+            long lineStart = transcript.getLineStart(line);
+            return Math.min(lineStart + column, transcript.getLineEnd(line));
+        }
+
+        private void copySelection() {
+            long start = Math.min(selectionAnchor, selectionDot), end = Math.max(selectionAnchor, selectionDot);
+            if (start < 0 || start == end) return;
+            if (end - start > Integer.MAX_VALUE - 8) {
+                RunREDUCE.errorMessageDialog("The selection is too large to copy.", "Copy Error");
+                return;
+            }
+            StringBuilder sb = new StringBuilder((int) (end - start));
+            transcript.getText(start, end, sb);
+            StringSelection selection = new StringSelection(sb.toString());
+            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, selection);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            if (disposed) return;
+            FontMetrics fm = getFontMetrics(getFont());
+            int lineHeight = fm.getHeight(), charWidth = fm.charWidth('m'), ascent = fm.getAscent();
+            long firstLine = verticalScrollBar.getValue();
+            int firstColumn = horizontalScrollBar.getValue();
+            int columns = getColumns() + 2;
+            if (lineBuffer.length < columns) lineBuffer = new char[columns];
+            long selectionStart = Math.min(selectionAnchor, selectionDot);
+            long selectionEnd = Math.max(selectionAnchor, selectionDot);
+            Color selectionColor = UIManager.getColor("TextPane.selectionBackground");
+            if (selectionColor == null) selectionColor = new Color(0xB8_CF_E5);
+            long lineCount = transcript.getLineCount();
+            for (int row = 0, y = 0; y < getHeight() && firstLine + row < lineCount; row++, y += lineHeight) {
+                long line = firstLine + row;
+                long lineStart = transcript.getLineStart(line), lineEnd = transcript.getLineEnd(line);
+                long from = Math.min(lineStart + firstColumn, lineEnd);
+                long to = Math.min(from + columns, lineEnd);
+                // Highlight any selected text, including the newline if it is selected:
+                long highlightStart = Math.max(selectionStart, from);
+                long highlightEnd = Math.min(selectionEnd, lineEnd < transcript.getLength() ? to + 1 : to);
+                if (selectionStart >= 0 && highlightStart < highlightEnd) {
+                    g.setColor(selectionColor);
+                    g.fillRect((int) (highlightStart - from) * charWidth, y,
+                            (int) (highlightEnd - highlightStart) * charWidth, lineHeight);
+                }
+                // Draw the visible characters one style run at a time:
+                long runIndex = transcript.getRunIndex(from);
+                for (long runStart = from; runStart < to; runIndex++) {
+                    long runEnd = Math.min(to, transcript.getRunEnd(runIndex));
+                    int style = transcript.getRunStyle(runIndex);
+                    int n = (int) (runEnd - runStart);
+                    for (int i = 0; i < n; i++) lineBuffer[i] = transcript.charAt(runStart + i);
+                    Color color = TranscriptStyles.foreground(style);
+                    g.setColor(color != null ? color : getForeground());
+                    g.setFont(TranscriptStyles.bold(style) ? boldFont : getFont());
+                    g.drawChars(lineBuffer, 0, n, (int) (runStart - from) * charWidth, y + ascent);
+                    runStart = runEnd;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * This class maps the attribute sets used in the I/O display to the small style codes
+ * stored in a transcript, by their foreground colour and weight.
+ */
+class TranscriptStyles {
+    private static final List<Color> foregrounds = new ArrayList<>();
+    private static final List<Boolean> bolds = new ArrayList<>();
+
+    static {
+        code(null); // style 0 is plain text
+    }
+
+    static synchronized int code(AttributeSet attributes) {
+        Color foreground = attributes != null && attributes.isDefined(StyleConstants.Foreground) ?
+                StyleConstants.getForeground(attributes) : null;
+        boolean bold = attributes != null && StyleConstants.isBold(attributes);
+        for (int i = 0; i < foregrounds.size(); i++)
+            if (bolds.get(i) == bold &&
+                    (foreground == null ? foregrounds.get(i) == null : foreground.equals(foregrounds.get(i))))
+                return i;
+        if (foregrounds.size() == 256) return 0; // cannot happen in practice
+        foregrounds.add(foreground);
+        bolds.add(bold);
+        return foregrounds.size() - 1;
+    }
+
+    static synchronized Color foreground(int code) {
+        return foregrounds.get(code);
+    }
+
+    static synchronized boolean bold(int code) {
+        return bolds.get(code);
+    }
+}
+
+/**
+ * This class stores a session transcript in three memory-mapped temporary files:
+ * the text as UTF-16 chars, the offset of the start of each line, and the start and style of each style run.
+ * So any line can be found in constant time and memory use does not grow with the transcript.
+ * Offsets are in chars.
+ */
+class MappedTranscript {
+    private final MappedFile text = new MappedFile("text", 26);  // 64 MB segments
+    private final MappedFile lines = new MappedFile("lines", 23); // 8 MB segments
+    private final MappedFile runs = new MappedFile("runs", 23);   // 8 MB segments
+    private long length;        // number of chars
+    private long lineCount = 1; // line 0 starts at offset 0 even if empty
+    private long runCount;
+    private int lastStyle = -1;
+    private int maxLineLength, lineLength;
+
+    MappedTranscript() {
+        lines.putLong(0, 0);
+    }
+
+    void append(CharSequence s, int start, int end, int style) {
+        if (start >= end) return;
+        if (style != lastStyle) {
+            // Each run is stored as its start offset shifted left 8 bits plus its style code:
+            runs.putLong(8 * runCount++, length << 8 | style);
+            lastStyle = style;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            text.putChar(2 * length++, c);
+            if (c == '\n') {
+                lines.putLong(8 * lineCount++, length);
+                lineLength = 0;
+            } else if (++lineLength > maxLineLength) maxLineLength = lineLength;
+        }
+    }
+
+    /**
+     * Discard all text from newLength onwards.
+     */
+    void truncate(long newLength) {
+        if (newLength >= length || newLength < 0) return;
+        length = newLength;
+        while (lineCount > 1 && getLineStart(lineCount - 1) > length) lineCount--;
+        while (runCount > 0 && getRunStart(runCount - 1) >= length) runCount--;
+        lastStyle = runCount > 0 ? getRunStyle(runCount - 1) : -1;
+        lineLength = (int) (length - getLineStart(lineCount - 1));
+        if (length == 0) maxLineLength = 0;
+    }
+
+    /**
+     * Close and delete the three files; the transcript must not be used again.
+     */
+    void close() {
+        text.close();
+        lines.close();
+        runs.close();
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    long getLineCount() {
+        return lineCount;
+    }
+
+    int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    char charAt(long offset) {
+        return text.getChar(2 * offset);
+    }
+
+    void getText(long start, long end, StringBuilder sb) {
+        for (long i = start; i < end; i++) sb.append(charAt(i));
+    }
+
+    long getLineStart(long line) {
+        return lines.getLong(8 * line);
+    }
+
+    /**
+     * Return the offset of the end of the line, excluding any newline.
+     */
+    long getLineEnd(long line) {
+        return line + 1 < lineCount ? getLineStart(line + 1) - 1 : length;
+    }
+
+    private long getRunStart(long run) {
+        return runs.getLong(8 * run) >>> 8;
+    }
+
+    int getRunStyle(long run) {
+        return run < runCount ? (int) (runs.getLong(8 * run) & 0xFF) : 0;
+    }
+
+    long getRunEnd(long run) {
+        return run + 1 < runCount ? getRunStart(run + 1) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Return the index of the style run containing offset by binary search.
+     */
+    long getRunIndex(long offset) {
+        long low = 0, high = runCount - 1;
+        while (low < high) {
+            long mid = (low + high + 1) >>> 1;
+            if (getRunStart(mid) <= offset) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * This class provides a growable temporary file accessed via a list of memory-mapped segments.
+     * Values never straddle segments because each segment size is a multiple of 8 bytes.
+     */
+    private static class MappedFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final int segmentShift;
+        private final long segmentMask;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+        MappedFile(String name, int segmentShift) {
+            this.segmentShift = segmentShift;
+            segmentMask = (1L << segmentShift) - 1;
+            try {
+                path = Files.createTempFile("Run-REDUCE-" + name + "-", ".bin");
+                path.toFile().deleteOnExit();
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException exc) {
+                throw new RuntimeException("Cannot create transcript file", exc);
+            }
+        }
+
+        private MappedByteBuffer segment(long position) {
+            int index = (int) (position >>> segmentShift);
+            try {
+                // Mapping beyond the end of the file extends it:
+                while (segments.size() <= index)
+                    segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+                            (long) segments.size() << segmentShift, 1L << segmentShift));
+            } catch (IOException exc) {
+                throw new RuntimeException("Cannot map transcript file", exc);
+            }
+            return segments.get(index);
+        }
+
+        /**
+         * Close and delete the file. The mapped segments are unmapped when they are garbage collected;
+         * on Linux and macOS the file is deleted at once, but on Windows deletion may fail until then,
+         * in which case it is left to deleteOnExit.
+         */
+        void close() {
+            segments.clear();
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+            }
+        }
+
+        char getChar(long position) {
+            return segment(position).getChar((int) (position & segmentMask));
+        }
+
+        void putChar(long position, char c) {
+            segment(position).putChar((int) (position & segmentMask), c);
+        }
+
+        long getLong(long position) {
+            return segment(position).getLong((int) (position & segmentMask));
+        }
+
+        void putLong(long position, long l) {
+            segment(position).putLong((int) (position & segmentMask), l);
+        }
+    }
+}